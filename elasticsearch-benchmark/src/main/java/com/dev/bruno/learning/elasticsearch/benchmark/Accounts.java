@@ -0,0 +1,50 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic bank accounts with the shape of the accounts.json dataset used by SearchTest.
+ */
+final class Accounts {
+
+    static final String[] STATES = {
+        "AL", "AK", "AZ", "CA", "CO", "DE", "FL", "GA", "ID", "IL", "IN", "KY", "MD", "ME", "MO", "NY", "OH", "PA",
+        "TN", "TX", "UT", "VA", "WA", "WY"
+    };
+
+    private static final String[] NAMES = {"Amber", "Hattie", "Nanette", "Dale", "Elinor", "Virginia", "Dillard", "Mcgee"};
+
+    private Accounts() {
+    }
+
+    /**
+     * NDJSON bulk body with one index action per account.
+     */
+    static InputStream bulkBody(int count) {
+        Random random = new Random(42);
+        StringBuilder body = new StringBuilder(count * 256);
+
+        for (int i = 0; i < count; i++) {
+            body.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+            appendAccount(body, i, random).append('\n');
+        }
+
+        return new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StringBuilder appendAccount(StringBuilder body, int accountNumber, Random random) {
+        String name = NAMES[random.nextInt(NAMES.length)];
+
+        return body.append("{\"account_number\":").append(accountNumber)
+            .append(",\"balance\":").append(1000 + random.nextInt(49000))
+            .append(",\"firstname\":\"").append(name).append('"')
+            .append(",\"lastname\":\"").append(NAMES[random.nextInt(NAMES.length)]).append('"')
+            .append(",\"age\":").append(20 + random.nextInt(21))
+            .append(",\"gender\":\"").append(random.nextBoolean() ? 'M' : 'F').append('"')
+            .append(",\"email\":\"").append(name.toLowerCase()).append(accountNumber).append("@example.com\"")
+            .append(",\"state\":\"").append(STATES[random.nextInt(STATES.length)]).append("\"}");
+    }
+}
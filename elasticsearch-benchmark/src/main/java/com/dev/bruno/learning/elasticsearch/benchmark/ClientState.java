@@ -0,0 +1,88 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import com.dev.bruno.learning.elasticsearch.client.ClientFactory;
+import com.dev.bruno.learning.elasticsearch.client.ClientSettings;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.embedded.EmbeddedNode;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+
+/**
+ * Client and index shared by the threads of a benchmark. The nodes are taken from the elasticsearch.hosts system
+ * property, otherwise a node is started inside the JVM of the fork, as the tests do.
+ */
+abstract class ClientState {
+
+    private static EmbeddedNode embeddedNode;
+
+    protected SharedClient client;
+    protected RestHighLevelClient highLevelClient;
+    protected RestClient lowLevelClient;
+
+    protected void open() throws IOException {
+        client = ClientFactory.shared(settings());
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
+    }
+
+    protected void close() throws IOException {
+        client.close();
+    }
+
+    protected static ClientSettings settings() throws IOException {
+        if (System.getProperty(ClientSettings.HOSTS_PROPERTY) != null) {
+            return ClientSettings.defaults();
+        }
+
+        return ClientSettings.builder().hosts(embeddedNode().getHttpHost()).build();
+    }
+
+    private static synchronized EmbeddedNode embeddedNode() throws IOException {
+        if (embeddedNode == null) {
+            embeddedNode = EmbeddedNode.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    embeddedNode.close();
+                } catch (IOException e) {
+                    //The fork is stopping, the temporary directory is left behind
+                }
+            }));
+        }
+
+        return embeddedNode;
+    }
+
+    protected void createIndex(String index, int shards, String type, String... mapping) throws IOException {
+        deleteIndex(index);
+
+        CreateIndexRequest request = new CreateIndexRequest(index);
+        request.settings(Settings.builder()
+            .put("index.number_of_shards", shards)
+            .put("index.number_of_replicas", 0)
+        );
+
+        if (mapping.length > 0) {
+            request.mapping(type, (Object[]) mapping);
+        }
+
+        highLevelClient.indices().create(request);
+    }
+
+    protected void deleteIndex(String index) throws IOException {
+        try {
+            highLevelClient.indices().delete(new DeleteIndexRequest(index));
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.NOT_FOUND) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import com.dev.bruno.learning.elasticsearch.bulk.BulkIngester;
+import com.dev.bruno.learning.elasticsearch.client.BinaryClient;
+import com.dev.bruno.learning.elasticsearch.client.ClientFactory;
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The document and search workloads of DocumentsTest and SearchTest, with the requests and responses encoded as
+ * JSON or SMILE. The sources are built for every request, so the encoding cost is part of the measure.
+ * <p>
+ * CBOR can not be used in bulk requests, so the bulk benchmark only runs JSON and SMILE and the CBOR documents are
+ * preloaded one request at a time.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ContentTypeBenchmark {
+
+    static final String DOCUMENTS = "benchmark-content-customer";
+    static final String BANK = "benchmark-content-bank";
+    static final String TYPE = "_doc";
+    static final int PRELOADED = 10_000;
+    static final int BULK_SIZE = 100;
+
+    abstract static class FormatState extends ClientState {
+
+        XContentType xContentType;
+        RestHighLevelClient formatClient;
+
+        final AtomicLong ids = new AtomicLong(PRELOADED);
+
+        void load(String format) throws IOException {
+            open();
+            createIndex(DOCUMENTS, 1, TYPE, "name", "type=text");
+            createIndex(BANK, 5, TYPE);
+
+            //The data set is loaded as JSON, only the measured requests change format
+            BulkIngester.builder(lowLevelClient, "/" + BANK + "/" + TYPE + "/_bulk")
+                .refreshOnCompletion(true)
+                .build()
+                .ingest(Accounts.bulkBody(PRELOADED));
+
+            xContentType = XContentType.valueOf(format);
+            formatClient = xContentType == XContentType.JSON
+                ? ClientFactory.create(settings())
+                : ClientFactory.create(settings(), xContentType);
+
+            if (xContentType == XContentType.CBOR) {
+                for (int i = 0; i < PRELOADED; i++) {
+                    formatClient.index(indexRequest(Integer.toString(i), i));
+                }
+
+                new IndexVisibility(lowLevelClient).refresh(DOCUMENTS);
+            } else {
+                BulkRequest request = new BulkRequest();
+                for (int i = 0; i < PRELOADED; i++) {
+                    request.add(indexRequest(Integer.toString(i), i));
+                }
+                request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+
+                formatClient.bulk(request);
+            }
+        }
+
+        void unload() throws IOException {
+            formatClient.close();
+            deleteIndex(DOCUMENTS);
+            deleteIndex(BANK);
+            close();
+        }
+
+        IndexRequest indexRequest(String id, int version) throws IOException {
+            XContentBuilder source = XContentFactory.contentBuilder(xContentType)
+                .startObject()
+                .field("name", "John Doe " + version)
+                .field("age", 20 + version % 21)
+                .field("state", Accounts.STATES[version % Accounts.STATES.length])
+                .endObject();
+
+            return new IndexRequest(DOCUMENTS, TYPE, id).source(source);
+        }
+
+        SearchResponse search(SearchSourceBuilder sourceBuilder) throws IOException {
+            SearchRequest request = new SearchRequest(BANK).source(sourceBuilder);
+
+            //The high level client always writes search bodies as JSON
+            return formatClient instanceof BinaryClient
+                ? ((BinaryClient) formatClient).binarySearch(request)
+                : formatClient.search(request);
+        }
+
+        String nextId() {
+            return Long.toString(ids.getAndIncrement());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Format extends FormatState {
+
+        @Param({"JSON", "SMILE", "CBOR"})
+        String format;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            load(format);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            unload();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BulkFormat extends FormatState {
+
+        @Param({"JSON", "SMILE"})
+        String format;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            load(format);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            unload();
+        }
+    }
+
+    @Benchmark
+    public IndexResponse index(Format format) throws IOException {
+        return format.formatClient.index(format.indexRequest(format.nextId(), 1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public BulkResponse bulk(BulkFormat format) throws IOException {
+        BulkRequest request = new BulkRequest();
+        for (int i = 0; i < BULK_SIZE; i++) {
+            request.add(format.indexRequest(format.nextId(), i));
+        }
+
+        return format.formatClient.bulk(request);
+    }
+
+    @Benchmark
+    public GetResponse get(Format format) throws IOException {
+        String id = Integer.toString(ThreadLocalRandom.current().nextInt(PRELOADED));
+
+        return format.formatClient.get(new GetRequest(DOCUMENTS, TYPE, id));
+    }
+
+    @Benchmark
+    public SearchResponse boolQuery(Format format) throws IOException {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("age", "40"))
+                .mustNot(QueryBuilders.matchQuery("state", "ID"))
+        );
+
+        return format.search(sourceBuilder);
+    }
+
+    @Benchmark
+    public SearchResponse termsAggregation(Format format) throws IOException {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.size(0)
+            .aggregation(AggregationBuilders.terms("group_by_state").field("state.keyword"));
+
+        return format.search(sourceBuilder);
+    }
+}
@@ -0,0 +1,138 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The document operations of DocumentsTest: index, get, update, delete and bulk.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DocumentBenchmark {
+
+    static final String INDEX = "benchmark-customer";
+    static final String TYPE = "_doc";
+    static final int PRELOADED = 10_000;
+    static final int BULK_SIZE = 100;
+
+    @State(Scope.Benchmark)
+    public static class Documents extends ClientState {
+
+        final AtomicLong ids = new AtomicLong(PRELOADED);
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            open();
+            createIndex(INDEX, 1, TYPE, "name", "type=text");
+
+            BulkRequest request = new BulkRequest();
+            for (int i = 0; i < PRELOADED; i++) {
+                request.add(new IndexRequest(INDEX, TYPE, Integer.toString(i)).source(source(i), XContentType.JSON));
+            }
+            request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+
+            highLevelClient.bulk(request);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteIndex(INDEX);
+            close();
+        }
+
+        String nextId() {
+            return Long.toString(ids.getAndIncrement());
+        }
+    }
+
+    /**
+     * A document indexed right before each delete invocation, so every delete finds something to delete.
+     */
+    @State(Scope.Thread)
+    public static class Deletable {
+
+        String id;
+
+        @Setup(Level.Invocation)
+        public void setUp(Documents documents) throws IOException {
+            id = documents.nextId();
+            documents.highLevelClient.index(new IndexRequest(INDEX, TYPE, id).source(source(1), XContentType.JSON));
+        }
+    }
+
+    @Benchmark
+    public IndexResponse index(Documents documents) throws IOException {
+        IndexRequest request = new IndexRequest(INDEX, TYPE, documents.nextId());
+        request.source(source(1), XContentType.JSON);
+
+        return documents.highLevelClient.index(request);
+    }
+
+    @Benchmark
+    public GetResponse get(Documents documents) throws IOException {
+        return documents.highLevelClient.get(new GetRequest(INDEX, TYPE, randomPreloadedId()));
+    }
+
+    @Benchmark
+    public UpdateResponse update(Documents documents) throws IOException {
+        UpdateRequest request = new UpdateRequest(INDEX, TYPE, randomPreloadedId());
+        request.doc(source(2), XContentType.JSON);
+
+        return documents.highLevelClient.update(request);
+    }
+
+    @Benchmark
+    public DeleteResponse delete(Documents documents, Deletable deletable) throws IOException {
+        return documents.highLevelClient.delete(new DeleteRequest(INDEX, TYPE, deletable.id));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public BulkResponse bulk(Documents documents) throws IOException {
+        BulkRequest request = new BulkRequest();
+        for (int i = 0; i < BULK_SIZE; i++) {
+            request.add(new IndexRequest(INDEX, TYPE, documents.nextId()).source(source(i), XContentType.JSON));
+        }
+
+        return documents.highLevelClient.bulk(request);
+    }
+
+    private static String randomPreloadedId() {
+        return Integer.toString(ThreadLocalRandom.current().nextInt(PRELOADED));
+    }
+
+    private static String source(int version) {
+        return "{ \"name\":\"John Doe " + version + "\" }";
+    }
+}
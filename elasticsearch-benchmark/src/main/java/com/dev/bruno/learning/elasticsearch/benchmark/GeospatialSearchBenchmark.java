@@ -0,0 +1,111 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import com.dev.bruno.learning.elasticsearch.geo.GeoSearch;
+import com.dev.bruno.learning.elasticsearch.geo.GeoViewport;
+import com.vividsolutions.jts.geom.Coordinate;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.geo.ShapeRelation;
+import org.elasticsearch.common.geo.builders.EnvelopeBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The geo_shape WITHIN envelope query of GeospatialSearchTest, on points spread around Berlin, against the viewport
+ * queries of GeoSearch on the same points mapped as geo_point: geo_bounding_box and the geohash grid of a tile.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GeospatialSearchBenchmark {
+
+    static final String INDEX = "benchmark-example";
+    static final int PLACES = 5_000;
+
+    static final GeoViewport BERLIN = new GeoViewport(13.0, 52.0, 14.0, 53.0, 9);
+    static final GeoViewport BERLIN_TILE = GeoViewport.ofTile(8, 137, 83);
+
+    @State(Scope.Benchmark)
+    public static class Places extends ClientState {
+
+        GeoSearch points;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            open();
+            createIndex(INDEX, 5, "_doc", "location", "type=geo_shape", "point", "type=geo_point");
+
+            Random random = new Random(42);
+            BulkRequest request = new BulkRequest();
+
+            for (int i = 0; i < PLACES; i++) {
+                double lon = 12.5 + random.nextDouble() * 2;
+                double lat = 51.5 + random.nextDouble() * 2;
+
+                String source = "{ \"name\": \"Place " + i + "\", " +
+                    "\"location\": { \"type\": \"point\", \"coordinates\": [" + lon + ", " + lat + "] }, " +
+                    "\"point\": [" + lon + ", " + lat + "] }";
+
+                request.add(new IndexRequest(INDEX, "_doc", Integer.toString(i)).source(source, XContentType.JSON));
+            }
+            request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+
+            highLevelClient.bulk(request);
+
+            points = GeoSearch.builder(highLevelClient, INDEX, "point").fieldType(GeoSearch.FieldType.GEO_POINT).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteIndex(INDEX);
+            close();
+        }
+    }
+
+    @Benchmark
+    public SearchResponse geoShapeWithin(Places places) throws IOException {
+        EnvelopeBuilder envelopeBuilder = new EnvelopeBuilder(new Coordinate(13.0, 53.0), new Coordinate(14.0, 52.0));
+
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchAllQuery())
+                .filter(QueryBuilders.geoShapeQuery("location", envelopeBuilder).relation(ShapeRelation.WITHIN))
+        );
+
+        return places.highLevelClient.search(new SearchRequest(INDEX).source(sourceBuilder));
+    }
+
+    @Benchmark
+    public SearchResponse geoBoundingBox(Places places) throws IOException {
+        return places.points.search(BERLIN, null, 10);
+    }
+
+    @Benchmark
+    public List<GeoSearch.Cluster> tileClusters(Places places) throws IOException {
+        return places.points.clusters(BERLIN_TILE, null);
+    }
+}
@@ -0,0 +1,91 @@
+package com.dev.bruno.learning.elasticsearch.benchmark;
+
+import com.dev.bruno.learning.elasticsearch.bulk.BulkIngester;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The searches of SearchTest: bool query, range filter and terms aggregation, on a 5 shards bank index.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+    static final String INDEX = "benchmark-bank";
+    static final int ACCOUNTS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Bank extends ClientState {
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            open();
+            createIndex(INDEX, 5, "_doc");
+
+            BulkIngester.builder(lowLevelClient, "/" + INDEX + "/_doc/_bulk")
+                .refreshOnCompletion(true)
+                .build()
+                .ingest(Accounts.bulkBody(ACCOUNTS));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteIndex(INDEX);
+            close();
+        }
+    }
+
+    @Benchmark
+    public SearchResponse boolQuery(Bank bank) throws IOException {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("age", "40"))
+                .mustNot(QueryBuilders.matchQuery("state", "ID"))
+        );
+
+        return bank.highLevelClient.search(new SearchRequest(INDEX).source(sourceBuilder));
+    }
+
+    @Benchmark
+    public SearchResponse rangeFilter(Bank bank) throws IOException {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchAllQuery())
+                .filter(QueryBuilders.rangeQuery("balance").gte(20000).lte(30000))
+        );
+
+        return bank.highLevelClient.search(new SearchRequest(INDEX).source(sourceBuilder));
+    }
+
+    @Benchmark
+    public SearchResponse termsAggregation(Bank bank) throws IOException {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        sourceBuilder.size(0)
+            .aggregation(AggregationBuilders.terms("group_by_state").field("state.keyword"));
+
+        return bank.highLevelClient.search(new SearchRequest(INDEX).source(sourceBuilder));
+    }
+}
@@ -0,0 +1,347 @@
+package com.dev.bruno.learning.elasticsearch.batch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Collects individual gets and searches for a short window and sends them as a single _mget or _msearch, then
+ * completes the future of every caller with its own item.
+ * <p>
+ * A batch is sent {@code maxDelay} after its first request or as soon as it holds {@code maxBatchSize} requests,
+ * whichever comes first. A batch that ends up with a single request sends it as a plain get or search. Gets are
+ * batched per preference, realtime and refresh flags, which _mget only accepts for the whole request. Scroll
+ * searches are never batched.
+ */
+public class ReadBatcher implements Closeable {
+
+    private final RestHighLevelClient highLevelClient;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<String, Batch<GetRequest, GetResponse>> gets = new ConcurrentHashMap<>();
+    private final Batch<SearchRequest, SearchResponse> searches;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private ReadBatcher(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.maxDelayNanos = builder.maxDelay.nanos();
+        this.maxBatchSize = builder.maxBatchSize;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "read-batcher-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.searches = new Batch<>(this::sendSearches);
+    }
+
+    public static Builder builder(RestHighLevelClient highLevelClient) {
+        return new Builder(highLevelClient);
+    }
+
+    public GetResponse get(GetRequest getRequest) throws IOException {
+        return await(getAsync(getRequest));
+    }
+
+    public CompletableFuture<GetResponse> getAsync(GetRequest getRequest) {
+        String flags = getRequest.preference() + "|" + getRequest.realtime() + "|" + getRequest.refresh();
+
+        return gets.computeIfAbsent(flags, key -> new Batch<>(this::sendGets)).add(getRequest);
+    }
+
+    public SearchResponse search(SearchRequest searchRequest) throws IOException {
+        return await(searchAsync(searchRequest));
+    }
+
+    public CompletableFuture<SearchResponse> searchAsync(SearchRequest searchRequest) {
+        if (searchRequest.scroll() != null) {
+            requests.incrementAndGet();
+            calls.incrementAndGet();
+
+            CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+            highLevelClient.searchAsync(searchRequest, ActionListener.wrap(future::complete, future::completeExceptionally));
+
+            return future;
+        }
+
+        return searches.add(searchRequest);
+    }
+
+    /**
+     * Number of gets and searches received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Number of HTTP calls sent for them.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Sends the pending batches right away.
+     */
+    public void flush() {
+        for (Batch<GetRequest, GetResponse> batch : gets.values()) {
+            batch.flush();
+        }
+
+        searches.flush();
+    }
+
+    /**
+     * Sends the pending batches, the futures already handed out still complete after the batcher is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void sendGets(List<Pending<GetRequest, GetResponse>> batch) {
+        calls.incrementAndGet();
+
+        if (batch.size() == 1) {
+            Pending<GetRequest, GetResponse> pending = batch.get(0);
+            highLevelClient.getAsync(pending.request, ActionListener.wrap(pending.future::complete, pending.future::completeExceptionally));
+            return;
+        }
+
+        GetRequest first = batch.get(0).request;
+
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        multiGetRequest.preference(first.preference());
+        multiGetRequest.realtime(first.realtime());
+        multiGetRequest.refresh(first.refresh());
+
+        for (Pending<GetRequest, GetResponse> pending : batch) {
+            GetRequest request = pending.request;
+
+            multiGetRequest.add(new MultiGetRequest.Item(request.index(), request.type(), request.id())
+                .routing(request.routing())
+                .parent(request.parent())
+                .storedFields(request.storedFields())
+                .version(request.version())
+                .versionType(request.versionType())
+                .fetchSourceContext(request.fetchSourceContext()));
+        }
+
+        highLevelClient.multiGetAsync(multiGetRequest, ActionListener.wrap(
+            response -> {
+                MultiGetItemResponse[] items = response.getResponses();
+
+                for (int i = 0; i < batch.size(); i++) {
+                    if (items[i].isFailed()) {
+                        batch.get(i).future.completeExceptionally(items[i].getFailure().getFailure());
+                    } else {
+                        batch.get(i).future.complete(items[i].getResponse());
+                    }
+                }
+            },
+            failure -> fail(batch, failure)
+        ));
+    }
+
+    private void sendSearches(List<Pending<SearchRequest, SearchResponse>> batch) {
+        calls.incrementAndGet();
+
+        if (batch.size() == 1) {
+            Pending<SearchRequest, SearchResponse> pending = batch.get(0);
+            highLevelClient.searchAsync(pending.request, ActionListener.wrap(pending.future::complete, pending.future::completeExceptionally));
+            return;
+        }
+
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+
+        for (Pending<SearchRequest, SearchResponse> pending : batch) {
+            multiSearchRequest.add(pending.request);
+        }
+
+        highLevelClient.multiSearchAsync(multiSearchRequest, ActionListener.wrap(
+            response -> {
+                MultiSearchResponse.Item[] items = response.getResponses();
+
+                for (int i = 0; i < batch.size(); i++) {
+                    if (items[i].isFailure()) {
+                        batch.get(i).future.completeExceptionally(items[i].getFailure());
+                    } else {
+                        batch.get(i).future.complete(items[i].getResponse());
+                    }
+                }
+            },
+            failure -> fail(batch, failure)
+        ));
+    }
+
+    private static <R, T> void fail(List<Pending<R, T>> batch, Exception failure) {
+        for (Pending<R, T> pending : batch) {
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Requests waiting for the same multi request.
+     */
+    private class Batch<R, T> {
+
+        private final Consumer<List<Pending<R, T>>> sender;
+
+        private List<Pending<R, T>> pending = new ArrayList<>();
+        private ScheduledFuture<?> scheduledFlush;
+
+        Batch(Consumer<List<Pending<R, T>>> sender) {
+            this.sender = sender;
+        }
+
+        CompletableFuture<T> add(R request) {
+            Pending<R, T> added = new Pending<>(request);
+            List<Pending<R, T>> full = null;
+
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Read batcher is already closed");
+                }
+
+                pending.add(added);
+
+                if (pending.size() >= maxBatchSize) {
+                    full = drain();
+                } else if (pending.size() == 1) {
+                    scheduledFlush = scheduler.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            requests.incrementAndGet();
+
+            //Sent outside of the lock, the callers filling the next batch do not wait for it
+            if (full != null) {
+                sender.accept(full);
+            }
+
+            return added.future;
+        }
+
+        void flush() {
+            List<Pending<R, T>> batch;
+
+            synchronized (this) {
+                batch = drain();
+            }
+
+            if (!batch.isEmpty()) {
+                sender.accept(batch);
+            }
+        }
+
+        private List<Pending<R, T>> drain() {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            List<Pending<R, T>> batch = pending;
+            pending = new ArrayList<>();
+
+            return batch;
+        }
+    }
+
+    private static class Pending<R, T> {
+
+        private final R request;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(R request) {
+            this.request = request;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private TimeValue maxDelay = TimeValue.timeValueMillis(2);
+        private int maxBatchSize = 100;
+
+        private Builder(RestHighLevelClient highLevelClient) {
+            this.highLevelClient = highLevelClient;
+        }
+
+        /**
+         * How long the first request of a batch waits for others, the latency every batched call may pay.
+         */
+        public Builder maxDelay(TimeValue maxDelay) {
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("maxBatchSize must be positive");
+            }
+
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public ReadBatcher build() {
+            return new ReadBatcher(this);
+        }
+    }
+}
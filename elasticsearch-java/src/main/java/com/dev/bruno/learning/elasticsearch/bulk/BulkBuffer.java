@@ -0,0 +1,70 @@
+package com.dev.bruno.learning.elasticsearch.bulk;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that is reused between bulk batches, so the ingester does not allocate a new array per request.
+ */
+class BulkBuffer {
+
+    private byte[] bytes;
+    private int size;
+    private int actions;
+
+    BulkBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    void write(byte[] source, int offset, int length) {
+        ensureCapacity(size + length);
+
+        System.arraycopy(source, offset, bytes, size, length);
+        size += length;
+    }
+
+    void write(BulkBuffer other) {
+        write(other.bytes, 0, other.size);
+        actions += other.actions;
+    }
+
+    void write(byte b) {
+        ensureCapacity(size + 1);
+
+        bytes[size++] = b;
+    }
+
+    void addAction() {
+        actions++;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int actions() {
+        return actions;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    void clear() {
+        size = 0;
+        actions = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.dev.bruno.learning.elasticsearch.bulk;
+
+import com.dev.bruno.learning.elasticsearch.client.CompressingRestClient;
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import com.dev.bruno.learning.elasticsearch.response.BulkItemFailures;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams a NDJSON bulk payload (action line followed by an optional source line) to the _bulk endpoint.
+ * <p>
+ * The input is read in fixed size chunks and cut into batches by byte size and number of actions. Batches are
+ * written into a fixed pool of reusable buffers: when every buffer is in flight, reading blocks until Elasticsearch
+ * answers one of them, so the heap used by the ingester is bounded by (maxInFlight + 1) * maxBytes whatever the
+ * size of the input.
+ */
+public class BulkIngester {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] DELETE = "\"delete\"".getBytes(StandardCharsets.UTF_8);
+
+    private static final Map<String, String> PARAMS = Collections.singletonMap("filter_path", "took,errors,items.*.error");
+
+    private final RestClient lowLevelClient;
+    private final CompressingRestClient compressingClient;
+    private final String endpoint;
+    private final int maxBytes;
+    private final int maxActions;
+    private final int maxInFlight;
+    private final boolean refreshOnCompletion;
+
+    private BulkIngester(Builder builder) {
+        this.lowLevelClient = builder.lowLevelClient;
+        this.compressingClient = builder.compression ? new CompressingRestClient(builder.lowLevelClient) : null;
+        this.endpoint = builder.endpoint;
+        this.maxBytes = builder.maxBytes;
+        this.maxActions = builder.maxActions;
+        this.maxInFlight = builder.maxInFlight;
+        this.refreshOnCompletion = builder.refreshOnCompletion;
+    }
+
+    public static Builder builder(RestClient lowLevelClient, String endpoint) {
+        return new Builder(lowLevelClient, endpoint);
+    }
+
+    public Result ingest(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return ingest(in);
+        }
+    }
+
+    public Result ingest(InputStream in) throws IOException {
+        Session session = new Session();
+
+        try {
+            session.read(in);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bulk ingestion interrupted");
+        }
+
+        return session.result;
+    }
+
+    /**
+     * State of a single {@link #ingest(InputStream)} call, so one ingester can be shared between threads.
+     */
+    private class Session {
+
+        private final BlockingQueue<BulkBuffer> pool = new ArrayBlockingQueue<>(maxInFlight + 1);
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private final Result result = new Result();
+
+        private final BulkBuffer item = new BulkBuffer(1024);
+        private BulkBuffer batch;
+
+        private int lineStart;
+        private boolean expectingSource;
+
+        Session() {
+            for (int i = 0; i <= maxInFlight; i++) {
+                pool.add(new BulkBuffer(maxBytes));
+            }
+        }
+
+        void read(InputStream in) throws IOException, InterruptedException {
+            batch = pool.take();
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+
+            while ((read = in.read(chunk)) != -1) {
+                int start = 0;
+
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '\n') {
+                        item.write(chunk, start, i - start);
+                        endOfLine();
+                        start = i + 1;
+                    }
+                }
+
+                item.write(chunk, start, read - start);
+            }
+
+            //The last line does not need a line break
+            if (item.size() > lineStart) {
+                endOfLine();
+            }
+
+            if (expectingSource) {
+                throw new IOException("Bulk payload ended without the source of its last action");
+            }
+
+            flush();
+
+            //Every buffer back in the pool means that there are no requests in flight
+            awaitInFlight(maxInFlight + 1);
+
+            checkFailure();
+
+            //A refresh param on the last batch would only cover the shards that batch wrote to
+            if (refreshOnCompletion) {
+                new IndexVisibility(lowLevelClient).refresh(index(endpoint));
+            }
+        }
+
+        private void awaitInFlight(int buffers) throws InterruptedException {
+            List<BulkBuffer> taken = new ArrayList<>(buffers);
+
+            for (int i = 0; i < buffers; i++) {
+                taken.add(pool.take());
+            }
+
+            pool.addAll(taken);
+        }
+
+        private void endOfLine() throws IOException, InterruptedException {
+            int end = item.size();
+
+            while (end > lineStart && Character.isWhitespace(item.bytes()[end - 1])) {
+                end--;
+            }
+
+            if (end == lineStart) {
+                item.truncate(lineStart);
+                return;
+            }
+
+            item.truncate(end);
+            item.write((byte) '\n');
+
+            if (expectingSource) {
+                expectingSource = false;
+            } else {
+                item.addAction();
+                expectingSource = !isDelete(item.bytes(), lineStart, end);
+            }
+
+            if (expectingSource) {
+                lineStart = item.size();
+                return;
+            }
+
+            add();
+        }
+
+        private void add() throws IOException, InterruptedException {
+            if (!batch.isEmpty() && (batch.size() + item.size() > maxBytes || batch.actions() >= maxActions)) {
+                flush();
+                batch = pool.take();
+            }
+
+            batch.write(item);
+            item.clear();
+            lineStart = 0;
+        }
+
+        private void flush() throws IOException {
+            checkFailure();
+
+            if (batch.isEmpty()) {
+                pool.add(batch);
+                return;
+            }
+
+            BulkBuffer sent = batch;
+            NByteArrayEntity entity = new NByteArrayEntity(sent.bytes(), 0, sent.size(), ContentType.APPLICATION_JSON);
+
+            result.batches.incrementAndGet();
+            result.actions.addAndGet(sent.actions());
+            result.bytes.addAndGet(sent.size());
+
+            ResponseListener listener = new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    try {
+                        result.failedItems.addAndGet(countFailures(response));
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        release(sent);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    failure.compareAndSet(null, exception);
+                    release(sent);
+                }
+            };
+
+            if (compressingClient != null) {
+                compressingClient.performRequestAsync("POST", endpoint, PARAMS, entity, listener);
+            } else {
+                lowLevelClient.performRequestAsync("POST", endpoint, PARAMS, entity, listener);
+            }
+        }
+
+        private void release(BulkBuffer buffer) {
+            buffer.clear();
+            pool.add(buffer);
+        }
+
+        private void checkFailure() throws IOException {
+            Exception exception = failure.get();
+
+            if (exception instanceof IOException) {
+                throw (IOException) exception;
+            }
+
+            if (exception != null) {
+                throw new IOException("Bulk request failed", exception);
+            }
+        }
+    }
+
+    private static boolean isDelete(byte[] line, int start, int end) {
+        int i = start;
+        while (i < end && (line[i] == '{' || Character.isWhitespace(line[i]))) {
+            i++;
+        }
+
+        if (end - i < DELETE.length) {
+            return false;
+        }
+
+        for (int j = 0; j < DELETE.length; j++) {
+            if (line[i + j] != DELETE[j]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Index of the endpoint, or every index when the actions name their own.
+     */
+    private static String index(String endpoint) {
+        String path = endpoint.startsWith("/") ? endpoint.substring(1) : endpoint;
+        String index = path.split("/")[0];
+
+        return index.isEmpty() || index.startsWith("_") ? "_all" : index;
+    }
+
+    /**
+     * The filter_path keeps only the items with an error, and a response without errors is read up to its flag.
+     */
+    private static long countFailures(Response response) throws IOException {
+        try (InputStream in = response.getEntity().getContent();
+             XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, in)) {
+            return BulkItemFailures.count(parser);
+        }
+    }
+
+    public static class Result {
+
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong actions = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failedItems = new AtomicLong();
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public long getActions() {
+            return actions.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getFailedItems() {
+            return failedItems.get();
+        }
+
+        public boolean hasFailures() {
+            return failedItems.get() > 0;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestClient lowLevelClient;
+        private final String endpoint;
+        private int maxBytes = 5 * 1024 * 1024;
+        private int maxActions = 1000;
+        private int maxInFlight = 1;
+        private boolean refreshOnCompletion;
+        private boolean compression;
+
+        private Builder(RestClient lowLevelClient, String endpoint) {
+            this.lowLevelClient = lowLevelClient;
+            this.endpoint = endpoint;
+        }
+
+        public Builder maxBytes(int maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder maxActions(int maxActions) {
+            if (maxActions <= 0) {
+                throw new IllegalArgumentException("maxActions must be positive");
+            }
+
+            this.maxActions = maxActions;
+            return this;
+        }
+
+        public Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive");
+            }
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Refreshes the index of the endpoint (every index for {@code /_bulk}) once every batch is answered, so the
+         * whole input is searchable when {@link #ingest} returns.
+         */
+        public Builder refreshOnCompletion(boolean refreshOnCompletion) {
+            this.refreshOnCompletion = refreshOnCompletion;
+            return this;
+        }
+
+        /**
+         * Gzips the batches while they are sent, worth it when the network and not the cluster limits throughput.
+         * {@link Result#getBytes()} still counts the uncompressed bytes.
+         */
+        public Builder compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public BulkIngester build() {
+            return new BulkIngester(this);
+        }
+    }
+}
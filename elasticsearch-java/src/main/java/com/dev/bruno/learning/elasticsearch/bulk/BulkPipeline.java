@@ -0,0 +1,332 @@
+package com.dev.bruno.learning.elasticsearch.bulk;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous bulk pipeline on top of {@link RestHighLevelClient#bulkAsync}, in the spirit of the transport
+ * client's BulkProcessor.
+ * <p>
+ * Requests are buffered and flushed when the number of actions, the estimated size or the flush interval is
+ * reached. At most {@code concurrentRequests} bulks are in flight; {@link #add(DocWriteRequest)} blocks once that
+ * limit is reached. Items rejected by the cluster (429 / EsRejectedExecutionException) are retried alone, following
+ * the backoff policy, while the successful ones are kept.
+ */
+public class BulkPipeline implements Closeable {
+
+    public interface Listener {
+
+        default void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        void afterBulk(long executionId, BulkRequest request, BulkResponse response);
+
+        void afterBulk(long executionId, BulkRequest request, Exception failure);
+    }
+
+    private final RestHighLevelClient highLevelClient;
+    private final Listener listener;
+    private final int concurrentRequests;
+    private final int bulkActions;
+    private final long bulkSize;
+    private final BackoffPolicy backoffPolicy;
+
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong executionIds = new AtomicLong();
+
+    private BulkRequest bulkRequest = new BulkRequest();
+    private volatile boolean closed;
+
+    private BulkPipeline(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.listener = builder.listener;
+        this.concurrentRequests = builder.concurrentRequests;
+        this.bulkActions = builder.bulkActions;
+        this.bulkSize = builder.bulkSize;
+        this.backoffPolicy = builder.backoffPolicy;
+        this.inFlight = new Semaphore(concurrentRequests);
+
+        //Two threads: the timed flush may block waiting for a slot, retries must still run to free that slot
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-pipeline-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (builder.flushInterval != null) {
+            long interval = builder.flushInterval.millis();
+            scheduler.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static Builder builder(RestHighLevelClient highLevelClient, Listener listener) {
+        return new Builder(highLevelClient, listener);
+    }
+
+    public synchronized BulkPipeline add(DocWriteRequest<?> request) throws InterruptedIOException {
+        if (closed) {
+            throw new IllegalStateException("Bulk pipeline is already closed");
+        }
+
+        bulkRequest.add(request);
+
+        if (bulkRequest.numberOfActions() >= bulkActions || bulkRequest.estimatedSizeInBytes() >= bulkSize) {
+            execute();
+        }
+
+        return this;
+    }
+
+    public synchronized void flush() throws InterruptedIOException {
+        if (bulkRequest.numberOfActions() > 0) {
+            execute();
+        }
+    }
+
+    /**
+     * Flushes the pending requests and waits until every bulk in flight, retries included, is answered.
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return true;
+            }
+
+            closed = true;
+        }
+
+        try {
+            flush();
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        }
+
+        try {
+            if (!inFlight.tryAcquire(concurrentRequests, timeout, unit)) {
+                return false;
+            }
+
+            inFlight.release(concurrentRequests);
+            return true;
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            awaitClose(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute() throws InterruptedIOException {
+        BulkRequest request = bulkRequest;
+        bulkRequest = new BulkRequest();
+
+        try {
+            //Blocks the producer while every slot is busy instead of piling up requests on the heap
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a bulk slot");
+        }
+
+        long executionId = executionIds.incrementAndGet();
+        listener.beforeBulk(executionId, request);
+
+        new Execution(executionId, request).send(request);
+    }
+
+    /**
+     * One bulk and its retries. Successful items are kept between attempts, only the rejected ones are sent again.
+     */
+    private class Execution {
+
+        private final long executionId;
+        private final BulkRequest request;
+        private final Iterator<TimeValue> backoff = backoffPolicy.iterator();
+        private final BulkItemResponse[] items;
+        private final long startTime = System.nanoTime();
+
+        private int[] positions;
+
+        Execution(long executionId, BulkRequest request) {
+            this.executionId = executionId;
+            this.request = request;
+            this.items = new BulkItemResponse[request.numberOfActions()];
+            this.positions = new int[items.length];
+
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+        }
+
+        void send(BulkRequest attempt) {
+            highLevelClient.bulkAsync(attempt, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    onAttemptResponse(attempt, response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onAttemptFailure(attempt, e);
+                }
+            });
+        }
+
+        private void onAttemptResponse(BulkRequest attempt, BulkResponse response) {
+            BulkRequest retry = new BulkRequest();
+            List<Integer> retryPositions = new ArrayList<>();
+
+            for (BulkItemResponse item : response.getItems()) {
+                int position = positions[item.getItemId()];
+
+                //The id of a retried item is its position in the retry, the listener expects the one of the bulk
+                items[position] = item.isFailed()
+                    ? new BulkItemResponse(position, item.getOpType(), item.getFailure())
+                    : new BulkItemResponse(position, item.getOpType(), item.getResponse());
+
+                if (item.isFailed() && item.status() == RestStatus.TOO_MANY_REQUESTS) {
+                    retry.add(attempt.requests().get(item.getItemId()));
+                    retryPositions.add(position);
+                }
+            }
+
+            if (retry.numberOfActions() == 0 || !backoff.hasNext()) {
+                complete();
+                return;
+            }
+
+            positions = retryPositions.stream().mapToInt(Integer::intValue).toArray();
+            schedule(retry);
+        }
+
+        private void onAttemptFailure(BulkRequest attempt, Exception e) {
+            if (isRejected(e) && backoff.hasNext()) {
+                schedule(attempt);
+                return;
+            }
+
+            try {
+                listener.afterBulk(executionId, request, e);
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        private void schedule(BulkRequest retry) {
+            scheduler.schedule(() -> send(retry), backoff.next().millis(), TimeUnit.MILLISECONDS);
+        }
+
+        private void complete() {
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            try {
+                listener.afterBulk(executionId, request, new BulkResponse(items, took));
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private static boolean isRejected(Exception e) {
+        if (e instanceof ResponseException) {
+            return ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == RestStatus.TOO_MANY_REQUESTS.getStatus();
+        }
+
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+
+        return cause instanceof EsRejectedExecutionException || ExceptionsHelper.status(cause) == RestStatus.TOO_MANY_REQUESTS;
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private final Listener listener;
+        private int concurrentRequests = 1;
+        private int bulkActions = 1000;
+        private long bulkSize = 5 * 1024 * 1024;
+        private TimeValue flushInterval;
+        private BackoffPolicy backoffPolicy = BackoffPolicy.exponentialBackoff();
+
+        private Builder(RestHighLevelClient highLevelClient, Listener listener) {
+            this.highLevelClient = highLevelClient;
+            this.listener = listener;
+        }
+
+        public Builder concurrentRequests(int concurrentRequests) {
+            if (concurrentRequests <= 0) {
+                throw new IllegalArgumentException("concurrentRequests must be positive");
+            }
+
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        public Builder bulkActions(int bulkActions) {
+            if (bulkActions <= 0) {
+                throw new IllegalArgumentException("bulkActions must be positive");
+            }
+
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        public Builder bulkSize(long bulkSize) {
+            if (bulkSize <= 0) {
+                throw new IllegalArgumentException("bulkSize must be positive");
+            }
+
+            this.bulkSize = bulkSize;
+            return this;
+        }
+
+        public Builder flushInterval(TimeValue flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        public Builder backoffPolicy(BackoffPolicy backoffPolicy) {
+            this.backoffPolicy = backoffPolicy;
+            return this;
+        }
+
+        public BulkPipeline build() {
+            return new BulkPipeline(this);
+        }
+    }
+}
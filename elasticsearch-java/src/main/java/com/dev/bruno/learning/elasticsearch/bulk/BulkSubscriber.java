@@ -0,0 +1,273 @@
+package com.dev.bruno.learning.elasticsearch.bulk;
+
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Reactive Streams subscriber that writes the items of any publisher as bulk requests.
+ * <p>
+ * It requests {@code bulkActions * concurrentRequests} items up front and requests the items of a bulk again only
+ * once that bulk was answered, so the upstream never runs more than {@code concurrentRequests} bulks ahead of the
+ * cluster and at most that many items are buffered. On Java 9 or later {@code org.reactivestreams.FlowAdapters}
+ * turns it into a {@code java.util.concurrent.Flow.Subscriber}.
+ * <p>
+ * Rejected or failed items are counted, not retried; see {@link BulkPipeline} for retries with backoff.
+ * {@link #completion()} completes once the upstream completed and every bulk was answered, and the written indices
+ * were refreshed when {@link Builder#refreshOnCompletion(boolean)} is set.
+ */
+public class BulkSubscriber<T> implements Subscriber<T> {
+
+    private final RestHighLevelClient highLevelClient;
+    private final Function<? super T, DocWriteRequest<?>> mapper;
+    private final int bulkActions;
+    private final int concurrentRequests;
+    private final boolean refreshOnCompletion;
+
+    private final CompletableFuture<Result> completion = new CompletableFuture<>();
+    private final Result result = new Result();
+    private final Set<String> indices = new LinkedHashSet<>();
+
+    private Subscription subscription;
+    private BulkRequest bulkRequest = new BulkRequest();
+    private int inFlight;
+    private boolean upstreamDone;
+    private boolean finishing;
+
+    private BulkSubscriber(Builder<T> builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.mapper = builder.mapper;
+        this.bulkActions = builder.bulkActions;
+        this.concurrentRequests = builder.concurrentRequests;
+        this.refreshOnCompletion = builder.refreshOnCompletion;
+    }
+
+    /**
+     * @param mapper turns every item into the index, update or delete request that writes it
+     */
+    public static <T> Builder<T> builder(RestHighLevelClient highLevelClient, Function<? super T, DocWriteRequest<?>> mapper) {
+        return new Builder<>(highLevelClient, mapper);
+    }
+
+    public CompletableFuture<Result> completion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        synchronized (this) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+
+            this.subscription = subscription;
+        }
+
+        subscription.request((long) bulkActions * concurrentRequests);
+    }
+
+    @Override
+    public void onNext(T item) {
+        BulkRequest full = null;
+
+        DocWriteRequest<?> request = mapper.apply(item);
+
+        synchronized (this) {
+            bulkRequest.add(request);
+
+            if (refreshOnCompletion) {
+                indices.add(request.index());
+            }
+
+            if (bulkRequest.numberOfActions() >= bulkActions) {
+                full = take();
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    @Override
+    public void onError(Throwable failure) {
+        completion.completeExceptionally(failure);
+    }
+
+    @Override
+    public void onComplete() {
+        BulkRequest last = null;
+
+        synchronized (this) {
+            upstreamDone = true;
+
+            if (bulkRequest.numberOfActions() > 0) {
+                last = take();
+            }
+        }
+
+        if (last != null) {
+            send(last);
+        } else {
+            completeIfDone();
+        }
+    }
+
+    private BulkRequest take() {
+        BulkRequest taken = bulkRequest;
+        bulkRequest = new BulkRequest();
+        inFlight++;
+
+        return taken;
+    }
+
+    private void send(BulkRequest request) {
+        int actions = request.numberOfActions();
+
+        result.batches.incrementAndGet();
+        result.actions.addAndGet(actions);
+        result.bytes.addAndGet(request.estimatedSizeInBytes());
+
+        highLevelClient.bulkAsync(request, ActionListener.wrap(
+            response -> {
+                countFailures(response);
+
+                synchronized (this) {
+                    inFlight--;
+                }
+
+                if (!completeIfDone()) {
+                    //The answered bulk frees room for as many items as it carried
+                    subscription.request(actions);
+                }
+            },
+            failure -> {
+                subscription.cancel();
+                completion.completeExceptionally(failure);
+            }
+        ));
+    }
+
+    private void countFailures(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return;
+        }
+
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                result.failedItems.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean completeIfDone() {
+        synchronized (this) {
+            if (!upstreamDone || inFlight > 0 || finishing) {
+                return false;
+            }
+
+            finishing = true;
+        }
+
+        if (!refreshOnCompletion || indices.isEmpty()) {
+            completion.complete(result);
+            return true;
+        }
+
+        //A refresh policy on the last bulk would only cover the shards that bulk wrote to
+        new IndexVisibility(highLevelClient.getLowLevelClient()).refreshAsync(ActionListener.wrap(
+            refreshed -> completion.complete(result),
+            completion::completeExceptionally
+        ), indices.toArray(new String[0]));
+
+        return true;
+    }
+
+    public static class Result {
+
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong actions = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failedItems = new AtomicLong();
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public long getActions() {
+            return actions.get();
+        }
+
+        /**
+         * Estimated size of the bulks, as computed by BulkRequest.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getFailedItems() {
+            return failedItems.get();
+        }
+
+        public boolean hasFailures() {
+            return failedItems.get() > 0;
+        }
+    }
+
+    public static class Builder<T> {
+
+        private final RestHighLevelClient highLevelClient;
+        private final Function<? super T, DocWriteRequest<?>> mapper;
+        private int bulkActions = 1000;
+        private int concurrentRequests = 1;
+        private boolean refreshOnCompletion;
+
+        private Builder(RestHighLevelClient highLevelClient, Function<? super T, DocWriteRequest<?>> mapper) {
+            this.highLevelClient = highLevelClient;
+            this.mapper = mapper;
+        }
+
+        public Builder<T> bulkActions(int bulkActions) {
+            if (bulkActions <= 0) {
+                throw new IllegalArgumentException("bulkActions must be positive");
+            }
+
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        public Builder<T> concurrentRequests(int concurrentRequests) {
+            if (concurrentRequests <= 0) {
+                throw new IllegalArgumentException("concurrentRequests must be positive");
+            }
+
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        /**
+         * Refreshes the written indices once every bulk was answered, before {@link #completion()} completes.
+         */
+        public Builder<T> refreshOnCompletion(boolean refreshOnCompletion) {
+            this.refreshOnCompletion = refreshOnCompletion;
+            return this;
+        }
+
+        public BulkSubscriber<T> build() {
+            return new BulkSubscriber<>(this);
+        }
+    }
+}
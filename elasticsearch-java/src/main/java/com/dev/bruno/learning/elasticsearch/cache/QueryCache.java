@@ -0,0 +1,251 @@
+package com.dev.bruno.learning.elasticsearch.cache;
+
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side cache of search responses for read-mostly queries, such as the ones behind a dashboard.
+ * <p>
+ * Entries are keyed by the indices and the normalized JSON of the SearchSourceBuilder, evicted in LRU order once
+ * {@code maxEntries} is reached and expire after {@code ttl}. Every entry remembers the generation of its indices
+ * (see {@link IndexVisibility#generation(String...)}) and is dropped as soon as a write or refresh changes it. The
+ * generation itself is read at most once per {@code generationCheckInterval}, so within that interval a repeated
+ * query does not touch the network at all.
+ * <p>
+ * Scroll requests are never cached. The cached SearchResponse instances are shared, callers must not change them.
+ */
+public class QueryCache {
+
+    private final RestHighLevelClient highLevelClient;
+    private final IndexVisibility indexVisibility;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long generationCheckNanos;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Generation> generations = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private QueryCache(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.indexVisibility = new IndexVisibility(builder.highLevelClient.getLowLevelClient());
+        this.maxEntries = builder.maxEntries;
+        this.ttlNanos = builder.ttl.nanos();
+        this.generationCheckNanos = builder.generationCheckInterval.nanos();
+
+        //Access ordered, the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static Builder builder(RestHighLevelClient highLevelClient) {
+        return new Builder(highLevelClient);
+    }
+
+    public SearchResponse search(SearchRequest searchRequest) throws IOException {
+        if (searchRequest.scroll() != null) {
+            return highLevelClient.search(searchRequest);
+        }
+
+        String[] indices = RequestKeys.indices(searchRequest);
+        String key = RequestKeys.key(searchRequest);
+
+        //Taken before searching, a write that lands during the search leaves the entry one generation behind
+        String generation = generation(indices);
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.generation.equals(generation) && now - entry.createdAt < ttlNanos) {
+                hits.incrementAndGet();
+                return entry.response;
+            }
+
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+
+        misses.incrementAndGet();
+
+        SearchResponse response = highLevelClient.search(searchRequest);
+
+        synchronized (entries) {
+            entries.put(key, new Entry(response, generation, now));
+        }
+
+        return response;
+    }
+
+    /**
+     * Drops the entries that searched any of the indices, for writers that know they changed them. Entries of
+     * searches over every index are dropped as well.
+     */
+    public void invalidate(String... indices) {
+        Set<String> names = new HashSet<>(Arrays.asList(indices));
+        names.add(RequestKeys.ALL_INDICES);
+
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> overlaps(RequestKeys.indicesOf(key), names));
+        }
+
+        synchronized (generations) {
+            generations.keySet().removeIf(key -> overlaps(key, names));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+
+        synchronized (generations) {
+            generations.clear();
+        }
+    }
+
+    /**
+     * Removes the expired entries, which are otherwise only dropped when they are looked up or evicted.
+     */
+    public void purge() {
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (now - iterator.next().createdAt >= ttlNanos) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private String generation(String[] indices) throws IOException {
+        String name = String.join(",", indices);
+        long now = System.nanoTime();
+
+        synchronized (generations) {
+            Generation generation = generations.get(name);
+
+            if (generation != null && now - generation.checkedAt < generationCheckNanos) {
+                return generation.value;
+            }
+        }
+
+        String value = indexVisibility.generation(indices);
+
+        synchronized (generations) {
+            generations.put(name, new Generation(value, now));
+        }
+
+        return value;
+    }
+
+    private static boolean overlaps(String joined, Set<String> names) {
+        for (String name : joined.split(",")) {
+            if (names.contains(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static class Entry {
+
+        private final SearchResponse response;
+        private final String generation;
+        private final long createdAt;
+
+        Entry(SearchResponse response, String generation, long createdAt) {
+            this.response = response;
+            this.generation = generation;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static class Generation {
+
+        private final String value;
+        private final long checkedAt;
+
+        Generation(String value, long checkedAt) {
+            this.value = value;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private int maxEntries = 1000;
+        private TimeValue ttl = TimeValue.timeValueMinutes(1);
+        private TimeValue generationCheckInterval = TimeValue.timeValueSeconds(1);
+
+        private Builder(RestHighLevelClient highLevelClient) {
+            this.highLevelClient = highLevelClient;
+        }
+
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries must be positive");
+            }
+
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        public Builder ttl(TimeValue ttl) {
+            this.ttl = ttl;
+            return this;
+        }
+
+        /**
+         * How long a generation read from _stats is trusted. Zero checks it before every search, which still saves
+         * the search itself but not the round trip.
+         */
+        public Builder generationCheckInterval(TimeValue generationCheckInterval) {
+            this.generationCheckInterval = generationCheckInterval;
+            return this;
+        }
+
+        public QueryCache build() {
+            return new QueryCache(this);
+        }
+    }
+}
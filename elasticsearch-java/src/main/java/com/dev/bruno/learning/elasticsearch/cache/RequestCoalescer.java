@@ -0,0 +1,147 @@
+package com.dev.bruno.learning.elasticsearch.cache;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight layer in front of get and search: while a request is in flight, identical requests from other
+ * threads wait for its response instead of sending their own, so a burst on a hot key costs one network call.
+ * <p>
+ * Nothing is kept once the response arrives, a request sent afterwards reaches the cluster again (see
+ * {@link QueryCache} to keep responses around).
+ * <p>
+ * Every caller gets a future of its own, cancelling or completing it leaves the others waiting for the response.
+ * The GetResponse or SearchResponse itself is the same instance for every waiter, callers must not change it nor
+ * its hits.
+ */
+public class RequestCoalescer {
+
+    private final RestHighLevelClient highLevelClient;
+
+    private final ConcurrentMap<String, CompletableFuture<GetResponse>> gets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<SearchResponse>> searches = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RequestCoalescer(RestHighLevelClient highLevelClient) {
+        this.highLevelClient = highLevelClient;
+    }
+
+    public GetResponse get(GetRequest getRequest) throws IOException {
+        return await(getAsync(getRequest));
+    }
+
+    public CompletableFuture<GetResponse> getAsync(GetRequest getRequest) {
+        return coalesce(gets, RequestKeys.key(getRequest), listener -> highLevelClient.getAsync(getRequest, listener));
+    }
+
+    public SearchResponse search(SearchRequest searchRequest) throws IOException {
+        return await(searchAsync(searchRequest));
+    }
+
+    /**
+     * Scroll requests are sent as they are, every scroll needs its own context on the cluster.
+     */
+    public CompletableFuture<SearchResponse> searchAsync(SearchRequest searchRequest) {
+        if (searchRequest.scroll() != null) {
+            CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+            highLevelClient.searchAsync(searchRequest, ActionListener.wrap(future::complete, future::completeExceptionally));
+
+            return future;
+        }
+
+        return coalesce(searches, RequestKeys.key(searchRequest), listener -> highLevelClient.searchAsync(searchRequest, listener));
+    }
+
+    /**
+     * Number of requests that reached the cluster.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Number of requests answered by the response of an identical one.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private <T> CompletableFuture<T> coalesce(ConcurrentMap<String, CompletableFuture<T>> inFlight, String key, Consumer<ActionListener<T>> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<T> leader = inFlight.putIfAbsent(key, future);
+
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return copy(leader);
+        }
+
+        calls.incrementAndGet();
+
+        //Removed before completing, a request arriving after the response must not receive it
+        call.accept(ActionListener.wrap(
+            response -> {
+                inFlight.remove(key, future);
+                future.complete(response);
+            },
+            failure -> {
+                inFlight.remove(key, future);
+                future.completeExceptionally(failure);
+            }
+        ));
+
+        return copy(future);
+    }
+
+    /**
+     * The future handed to a caller, completed by the shared one but not completing it.
+     */
+    private static <T> CompletableFuture<T> copy(CompletableFuture<T> shared) {
+        CompletableFuture<T> copy = new CompletableFuture<>();
+
+        shared.whenComplete((response, failure) -> {
+            if (failure != null) {
+                copy.completeExceptionally(failure);
+            } else {
+                copy.complete(response);
+            }
+        });
+
+        return copy;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.dev.bruno.learning.elasticsearch.cache;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+import java.util.Arrays;
+
+/**
+ * Keys of requests that produce the same response, the sorted indices always come first and end at the first '|'.
+ */
+final class RequestKeys {
+
+    static final String ALL_INDICES = "_all";
+
+    private RequestKeys() {
+    }
+
+    static String[] indices(SearchRequest searchRequest) {
+        String[] indices = searchRequest.indices();
+
+        if (indices == null || indices.length == 0) {
+            return new String[]{ALL_INDICES};
+        }
+
+        String[] sorted = indices.clone();
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+    static String indicesOf(String key) {
+        return key.substring(0, key.indexOf('|'));
+    }
+
+    static String key(SearchRequest searchRequest) {
+        SearchSourceBuilder source = searchRequest.source() != null ? searchRequest.source() : new SearchSourceBuilder();
+
+        //The builder renders its fields in a fixed order, equal queries give equal keys however they were built
+        return String.join(",", indices(searchRequest)) + "|" +
+            String.join(",", searchRequest.types()) + "|" +
+            searchRequest.routing() + "|" +
+            searchRequest.preference() + "|" +
+            searchRequest.searchType() + "|" +
+            Strings.toString(source);
+    }
+
+    static String key(GetRequest getRequest) {
+        FetchSourceContext fetchSource = getRequest.fetchSourceContext();
+
+        return getRequest.index() + "|" +
+            getRequest.type() + "|" +
+            getRequest.id() + "|" +
+            getRequest.routing() + "|" +
+            getRequest.parent() + "|" +
+            getRequest.preference() + "|" +
+            getRequest.realtime() + "|" +
+            getRequest.refresh() + "|" +
+            getRequest.version() + "|" +
+            getRequest.versionType() + "|" +
+            Arrays.toString(getRequest.storedFields()) + "|" +
+            (fetchSource == null ? null : Strings.toString(fetchSource));
+    }
+}
@@ -0,0 +1,125 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpEntity;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * CompletableFuture facade over the async methods of both clients.
+ * <p>
+ * No thread waits for a response: a request in flight costs a future and a slot in the connection pool, so tens of
+ * thousands of them can be outstanding with only the I/O reactor threads of the client. Requests beyond
+ * {@code maxConnTotal} queue for a connection, raise {@link ClientSettings.Builder#connectionRequestTimeoutMillis(int)}
+ * accordingly.
+ * <p>
+ * The futures are completed on the I/O reactor threads. Chain cheap stages only, or use the {@code *Async} variants
+ * of CompletableFuture with an executor, for example {@link VirtualThreads#executor()}, for anything that blocks.
+ */
+public class AsyncClient {
+
+    private final RestHighLevelClient highLevelClient;
+
+    public AsyncClient(RestHighLevelClient highLevelClient) {
+        this.highLevelClient = highLevelClient;
+    }
+
+    public CompletableFuture<IndexResponse> index(IndexRequest request) {
+        return call(listener -> highLevelClient.indexAsync(request, listener));
+    }
+
+    public CompletableFuture<GetResponse> get(GetRequest request) {
+        return call(listener -> highLevelClient.getAsync(request, listener));
+    }
+
+    public CompletableFuture<MultiGetResponse> multiGet(MultiGetRequest request) {
+        return call(listener -> highLevelClient.multiGetAsync(request, listener));
+    }
+
+    public CompletableFuture<UpdateResponse> update(UpdateRequest request) {
+        return call(listener -> highLevelClient.updateAsync(request, listener));
+    }
+
+    public CompletableFuture<DeleteResponse> delete(DeleteRequest request) {
+        return call(listener -> highLevelClient.deleteAsync(request, listener));
+    }
+
+    public CompletableFuture<BulkResponse> bulk(BulkRequest request) {
+        return call(listener -> highLevelClient.bulkAsync(request, listener));
+    }
+
+    public CompletableFuture<SearchResponse> search(SearchRequest request) {
+        return call(listener -> highLevelClient.searchAsync(request, listener));
+    }
+
+    public CompletableFuture<MultiSearchResponse> multiSearch(MultiSearchRequest request) {
+        return call(listener -> highLevelClient.multiSearchAsync(request, listener));
+    }
+
+    public CompletableFuture<SearchResponse> searchScroll(SearchScrollRequest request) {
+        return call(listener -> highLevelClient.searchScrollAsync(request, listener));
+    }
+
+    public CompletableFuture<Response> performRequest(String method, String endpoint) {
+        return performRequest(method, endpoint, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Low level request, completed exceptionally with a ResponseException for error status codes.
+     */
+    public CompletableFuture<Response> performRequest(String method, String endpoint, Map<String, String> params, HttpEntity entity) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        RestClient lowLevelClient = highLevelClient.getLowLevelClient();
+
+        lowLevelClient.performRequestAsync(method, endpoint, params, entity, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                future.completeExceptionally(exception);
+            }
+        });
+
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> call(Consumer<ActionListener<T>> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            call.accept(ActionListener.wrap(future::complete, future::completeExceptionally));
+        } catch (RuntimeException e) {
+            //Validation errors are thrown by the caller thread before anything is sent
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+}
@@ -0,0 +1,143 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * High level client that talks SMILE or CBOR instead of JSON.
+ * <p>
+ * Every response is requested in the binary format through the Accept header and parsed by the high level client
+ * as it is. Requests are only binary when their body is: build index, update and bulk sources with
+ * {@link #contentBuilder()} (or a {@code DocumentMapper} of the same type), and send searches through
+ * {@link #binarySearch}, as the high level client always writes search bodies as JSON. Bulk bodies must be SMILE,
+ * CBOR cannot be split into the lines of a bulk request.
+ * <p>
+ * The Accept header also applies to the low level client of this instance, so its responses are binary too.
+ */
+public class BinaryClient extends RestHighLevelClient {
+
+    private final XContentType xContentType;
+
+    public BinaryClient(RestClientBuilder restClientBuilder, XContentType xContentType) {
+        super(accept(restClientBuilder, xContentType));
+        this.xContentType = xContentType;
+    }
+
+    public XContentType xContentType() {
+        return xContentType;
+    }
+
+    public XContentBuilder contentBuilder() throws IOException {
+        return XContentFactory.contentBuilder(xContentType);
+    }
+
+    public SearchResponse binarySearch(SearchRequest searchRequest, Header... headers) throws IOException {
+        return performRequestAndParseEntity(searchRequest, this::toRequest, SearchResponse::fromXContent,
+            Collections.emptySet(), headers);
+    }
+
+    public void binarySearchAsync(SearchRequest searchRequest, ActionListener<SearchResponse> listener, Header... headers) {
+        performRequestAsyncAndParseEntity(searchRequest, this::toRequest, SearchResponse::fromXContent, listener,
+            Collections.emptySet(), headers);
+    }
+
+    /**
+     * Same endpoint and parameters as the search of the high level client, with the body in the binary format.
+     */
+    private Request toRequest(SearchRequest searchRequest) throws IOException {
+        StringBuilder endpoint = new StringBuilder();
+
+        if (searchRequest.indices().length > 0) {
+            endpoint.append('/').append(String.join(",", searchRequest.indices()));
+        }
+
+        if (searchRequest.types().length > 0) {
+            endpoint.append('/').append(String.join(",", searchRequest.types()));
+        }
+
+        endpoint.append("/_search");
+
+        Map<String, String> params = new HashMap<>();
+        //Without the type of every aggregation in its key the response can not be parsed
+        params.put("typed_keys", "true");
+        params.put("search_type", searchRequest.searchType().name().toLowerCase(Locale.ROOT));
+        params.put("batched_reduce_size", Integer.toString(searchRequest.getBatchedReduceSize()));
+        putIfNotNull(params, "routing", searchRequest.routing());
+        putIfNotNull(params, "preference", searchRequest.preference());
+
+        if (searchRequest.requestCache() != null) {
+            params.put("request_cache", Boolean.toString(searchRequest.requestCache()));
+        }
+
+        if (searchRequest.scroll() != null) {
+            params.put("scroll", searchRequest.scroll().keepAlive().getStringRep());
+        }
+
+        IndicesOptions indicesOptions = searchRequest.indicesOptions();
+        params.put("ignore_unavailable", Boolean.toString(indicesOptions.ignoreUnavailable()));
+        params.put("allow_no_indices", Boolean.toString(indicesOptions.allowNoIndices()));
+        params.put("expand_wildcards", expandWildcards(indicesOptions));
+
+        HttpEntity entity = searchRequest.source() == null ? null : entity(searchRequest.source());
+
+        return new Request("POST", endpoint.toString(), params, entity);
+    }
+
+    private HttpEntity entity(ToXContent toXContent) throws IOException {
+        try (XContentBuilder builder = contentBuilder()) {
+            toXContent.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            BytesRef bytes = builder.bytes().toBytesRef();
+
+            return new NByteArrayEntity(bytes.bytes, bytes.offset, bytes.length, Request.createContentType(xContentType));
+        }
+    }
+
+    private static String expandWildcards(IndicesOptions indicesOptions) {
+        if (indicesOptions.expandWildcardsOpen() && indicesOptions.expandWildcardsClosed()) {
+            return "open,closed";
+        }
+
+        if (indicesOptions.expandWildcardsOpen()) {
+            return "open";
+        }
+
+        return indicesOptions.expandWildcardsClosed() ? "closed" : "none";
+    }
+
+    private static void putIfNotNull(Map<String, String> params, String name, String value) {
+        if (value != null) {
+            params.put(name, value);
+        }
+    }
+
+    private static RestClientBuilder accept(RestClientBuilder restClientBuilder, XContentType xContentType) {
+        if (xContentType != XContentType.SMILE && xContentType != XContentType.CBOR) {
+            throw new IllegalArgumentException("Only SMILE and CBOR are binary formats, found " + xContentType);
+        }
+
+        return restClientBuilder.setDefaultHeaders(new Header[]{
+            new BasicHeader(HttpHeaders.ACCEPT, xContentType.mediaTypeWithoutParameters())
+        });
+    }
+}
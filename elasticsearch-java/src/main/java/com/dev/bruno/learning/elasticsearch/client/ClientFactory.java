@@ -0,0 +1,177 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Creates clients with a tuned connection pool and hands out a single shared client for the whole process.
+ * <p>
+ * The shared client is reference counted: every {@link #shared()} must be paired with a {@link SharedClient#close()}
+ * and the underlying client is closed when the last lease is released.
+ */
+public final class ClientFactory {
+
+    private static SharedState shared;
+
+    private ClientFactory() {
+    }
+
+    public static RestClientBuilder builder(ClientSettings settings) {
+        return builder(settings, null, null);
+    }
+
+    /**
+     * @param router picks the node of every request, null to let the RestClient rotate over the hosts
+     */
+    public static RestClientBuilder builder(ClientSettings settings, NodeRouter router) {
+        return builder(settings, router, null);
+    }
+
+    /**
+     * @param router  picks the node of every request, null to let the RestClient rotate over the hosts
+     * @param metrics records every request, null to record nothing
+     */
+    public static RestClientBuilder builder(ClientSettings settings, NodeRouter router, ClientMetrics metrics) {
+        return RestClient.builder(settings.getHosts().toArray(new HttpHost[0]))
+            //The retry timeout must cover at least one full socket timeout
+            .setMaxRetryTimeoutMillis(settings.getSocketTimeoutMillis())
+            .setRequestConfigCallback(requestConfig -> requestConfig
+                .setConnectTimeout(settings.getConnectTimeoutMillis())
+                .setSocketTimeout(settings.getSocketTimeoutMillis())
+                .setConnectionRequestTimeout(settings.getConnectionRequestTimeoutMillis()))
+            .setHttpClientConfigCallback(httpClient -> {
+                httpClient
+                    .setMaxConnPerRoute(settings.getMaxConnPerRoute())
+                    .setMaxConnTotal(settings.getMaxConnTotal())
+                    .setKeepAliveStrategy((response, context) -> settings.getKeepAliveMillis())
+                    .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(settings.getIoThreadCount())
+                        .setSoKeepAlive(true)
+                        .setTcpNoDelay(true)
+                        .build());
+
+                HttpAsyncClientBuilder built = httpClient;
+
+                if (router != null) {
+                    built = new WrappingClientBuilder(built, client -> router.attach(client, settings.getHosts()));
+                }
+
+                //Outside of the router, so the lease wait includes the selection of the node
+                if (metrics != null) {
+                    built = new WrappingClientBuilder(built, client -> new MeteredHttpAsyncClient(client, metrics));
+                }
+
+                return built;
+            });
+    }
+
+    public static RestHighLevelClient create(ClientSettings settings) {
+        return new RestHighLevelClient(builder(settings));
+    }
+
+    /**
+     * Client whose requests are spread over the nodes of the cluster by the router, see {@link NodeRouter}.
+     */
+    public static RestHighLevelClient create(ClientSettings settings, NodeRouter router) {
+        return new RestHighLevelClient(builder(settings, router));
+    }
+
+    /**
+     * Client whose requests are recorded in the metrics, see {@link ClientMetrics}.
+     */
+    public static RestHighLevelClient create(ClientSettings settings, ClientMetrics metrics) {
+        return new RestHighLevelClient(builder(settings, null, metrics));
+    }
+
+    /**
+     * Client that sends and receives SMILE or CBOR, see {@link BinaryClient}.
+     */
+    public static BinaryClient create(ClientSettings settings, XContentType xContentType) {
+        return new BinaryClient(builder(settings), xContentType);
+    }
+
+    /**
+     * Leases the process wide client, created with {@link ClientSettings#defaults()} on first use.
+     */
+    public static SharedClient shared() {
+        return shared(ClientSettings.defaults());
+    }
+
+    /**
+     * Leases the process wide client. The settings are only used if the client does not exist yet.
+     */
+    public static synchronized SharedClient shared(ClientSettings settings) {
+        if (shared == null) {
+            shared = new SharedState(create(settings));
+        }
+
+        return lease(shared);
+    }
+
+    static synchronized SharedClient lease(SharedState state) {
+        if (state.closed) {
+            throw new IllegalStateException("The shared client is closed");
+        }
+
+        state.references++;
+
+        return new SharedClient(state);
+    }
+
+    static synchronized void release(SharedState state) throws IOException {
+        state.references--;
+
+        if (state.references == 0) {
+            if (shared == state) {
+                shared = null;
+            }
+
+            state.closed = true;
+            state.highLevelClient.close();
+        }
+    }
+
+    /**
+     * The RestClient builds the HTTP client from the builder returned by the config callback, this one wraps the
+     * built client, to route or record its requests.
+     */
+    private static class WrappingClientBuilder extends HttpAsyncClientBuilder {
+
+        private final HttpAsyncClientBuilder httpClient;
+        private final UnaryOperator<CloseableHttpAsyncClient> wrapper;
+
+        WrappingClientBuilder(HttpAsyncClientBuilder httpClient, UnaryOperator<CloseableHttpAsyncClient> wrapper) {
+            this.httpClient = httpClient;
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public CloseableHttpAsyncClient build() {
+            return wrapper.apply(httpClient.build());
+        }
+    }
+
+    static class SharedState {
+
+        private final RestHighLevelClient highLevelClient;
+        private int references;
+        private boolean closed;
+
+        SharedState(RestHighLevelClient highLevelClient) {
+            this.highLevelClient = highLevelClient;
+        }
+
+        RestHighLevelClient highLevelClient() {
+            return highLevelClient;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, payload and connection pool metrics of the requests sent by a client created with
+ * {@link ClientFactory#create(ClientSettings, ClientMetrics)}.
+ * <p>
+ * Every request is recorded under its operation and index, both read from the endpoint: {@code index}, {@code get},
+ * {@code delete} and {@code exists} for the document endpoints, the name of the {@code _} endpoint otherwise
+ * ({@code bulk}, {@code search}, {@code scroll}, {@code update}, {@code mget}, ...) and {@code indices} for the
+ * index endpoints themselves. The latency goes to an HdrHistogram recorder, the bytes sent and received on the wire
+ * (compressed, when the body is) and the bulk items that failed go to striped counters, so recording never contends
+ * between the threads of the client.
+ * <p>
+ * The lease wait is the time from the start of an attempt until its connection is ready to send the request: the
+ * wait for a free connection of the pool, plus the connect when a new one is opened. Attempts that timed out waiting
+ * for a connection or could not connect are counted apart, they never reach an operation.
+ * <p>
+ * {@link #snapshot()} returns what was recorded since the previous snapshot, meant to be taken by a single reporter
+ * at a fixed interval.
+ */
+public class ClientMetrics {
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final ConcurrentMap<Key, Operation> operations = new ConcurrentHashMap<>();
+    private final Recorder leaseWait = new Recorder(SIGNIFICANT_DIGITS);
+    private final LongAdder leaseTimeouts = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+
+    private long intervalStart = System.currentTimeMillis();
+    private Histogram leaseWaitInterval;
+
+    public synchronized Snapshot snapshot() {
+        long now = System.currentTimeMillis();
+        List<OperationSnapshot> snapshots = new ArrayList<>();
+
+        for (Operation operation : operations.values()) {
+            operation.latencyInterval = operation.latency.getIntervalHistogram(operation.latencyInterval);
+
+            snapshots.add(new OperationSnapshot(
+                operation.key,
+                operation.latencyInterval.copy(),
+                operation.failures.sumThenReset(),
+                operation.requestBytes.sumThenReset(),
+                operation.responseBytes.sumThenReset(),
+                operation.bulkItemFailures.sumThenReset()
+            ));
+        }
+
+        leaseWaitInterval = leaseWait.getIntervalHistogram(leaseWaitInterval);
+
+        Snapshot snapshot = new Snapshot(intervalStart, now, snapshots, leaseWaitInterval.copy(),
+            leaseTimeouts.sumThenReset(), connectFailures.sumThenReset());
+
+        intervalStart = now;
+
+        return snapshot;
+    }
+
+    Operation operation(String operation, String index) {
+        Key key = new Key(operation, index);
+
+        return operations.computeIfAbsent(key, Operation::new);
+    }
+
+    void leaseWait(long nanos) {
+        leaseWait.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void leaseTimeout() {
+        leaseTimeouts.increment();
+    }
+
+    void connectFailure() {
+        connectFailures.increment();
+    }
+
+    static class Operation {
+
+        private final Key key;
+        private final Recorder latency = new Recorder(SIGNIFICANT_DIGITS);
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder bulkItemFailures = new LongAdder();
+
+        //Only touched by the snapshots, recycled between intervals
+        private Histogram latencyInterval;
+
+        Operation(Key key) {
+            this.key = key;
+        }
+
+        boolean isBulk() {
+            return key.operation.equals("bulk");
+        }
+
+        void completed(long nanos) {
+            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        void failed(long nanos) {
+            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+            failures.increment();
+        }
+
+        void requestBytes(long bytes) {
+            requestBytes.add(bytes);
+        }
+
+        void responseBytes(long bytes) {
+            responseBytes.add(bytes);
+        }
+
+        void bulkItemFailures(long count) {
+            bulkItemFailures.add(count);
+        }
+    }
+
+    static class Key {
+
+        private final String operation;
+        private final String index;
+
+        Key(String operation, String index) {
+            this.operation = operation;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return operation.equals(key.operation) && index.equals(key.index);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operation, index);
+        }
+    }
+
+    public static class Snapshot {
+
+        private final long startMillis;
+        private final long endMillis;
+        private final List<OperationSnapshot> operations;
+        private final Histogram leaseWait;
+        private final long leaseTimeouts;
+        private final long connectFailures;
+
+        Snapshot(long startMillis, long endMillis, List<OperationSnapshot> operations, Histogram leaseWait,
+                 long leaseTimeouts, long connectFailures) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.operations = Collections.unmodifiableList(operations);
+            this.leaseWait = leaseWait;
+            this.leaseTimeouts = leaseTimeouts;
+            this.connectFailures = connectFailures;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public List<OperationSnapshot> getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return the operation on the index, null when none was recorded
+         */
+        public OperationSnapshot getOperation(String operation, String index) {
+            for (OperationSnapshot snapshot : operations) {
+                if (snapshot.getOperation().equals(operation) && snapshot.getIndex().equals(index)) {
+                    return snapshot;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return the lease wait of the attempts, in microseconds
+         */
+        public Histogram getLeaseWait() {
+            return leaseWait;
+        }
+
+        public long getLeaseTimeouts() {
+            return leaseTimeouts;
+        }
+
+        public long getConnectFailures() {
+            return connectFailures;
+        }
+    }
+
+    public static class OperationSnapshot {
+
+        private final Key key;
+        private final Histogram latency;
+        private final long failures;
+        private final long requestBytes;
+        private final long responseBytes;
+        private final long bulkItemFailures;
+
+        OperationSnapshot(Key key, Histogram latency, long failures, long requestBytes, long responseBytes,
+                          long bulkItemFailures) {
+            this.key = key;
+            this.latency = latency;
+            this.failures = failures;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.bulkItemFailures = bulkItemFailures;
+        }
+
+        public String getOperation() {
+            return key.operation;
+        }
+
+        /**
+         * @return the index, alias or list of indices of the endpoint, {@code _all} when it has none
+         */
+        public String getIndex() {
+            return key.index;
+        }
+
+        public long getCount() {
+            return latency.getTotalCount();
+        }
+
+        /**
+         * @return the latency of the attempts, in microseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getLatencyMicros(double percentile) {
+            return latency.getValueAtPercentile(percentile);
+        }
+
+        /**
+         * @return the attempts that failed or were answered with a 5xx status
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        public long getBulkItemFailures() {
+            return bulkItemFailures;
+        }
+    }
+}
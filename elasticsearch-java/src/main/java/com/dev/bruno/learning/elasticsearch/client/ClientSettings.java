@@ -0,0 +1,169 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpHost;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Connection settings of the clients created by {@link ClientFactory}.
+ * <p>
+ * The defaults are sized for many concurrent callers: Apache's async client only opens 2 connections per route and
+ * the RestClientBuilder raises it to 10, which serializes requests as soon as a few threads share the client.
+ */
+public class ClientSettings {
+
+    /**
+     * Comma separated list of hosts, for example {@code http://es1:9200,http://es2:9200}.
+     */
+    public static final String HOSTS_PROPERTY = "elasticsearch.hosts";
+
+    private static final String DEFAULT_HOSTS = "http://localhost:9200";
+
+    private final List<HttpHost> hosts;
+    private final int maxConnPerRoute;
+    private final int maxConnTotal;
+    private final long keepAliveMillis;
+    private final int ioThreadCount;
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final int connectionRequestTimeoutMillis;
+
+    private ClientSettings(Builder builder) {
+        this.hosts = builder.hosts;
+        this.maxConnPerRoute = builder.maxConnPerRoute;
+        this.maxConnTotal = builder.maxConnTotal;
+        this.keepAliveMillis = builder.keepAliveMillis;
+        this.ioThreadCount = builder.ioThreadCount;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.socketTimeoutMillis = builder.socketTimeoutMillis;
+        this.connectionRequestTimeoutMillis = builder.connectionRequestTimeoutMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Default settings, with the hosts taken from the {@value #HOSTS_PROPERTY} system property when it is set.
+     */
+    public static ClientSettings defaults() {
+        return builder().build();
+    }
+
+    public List<HttpHost> getHosts() {
+        return hosts;
+    }
+
+    public int getMaxConnPerRoute() {
+        return maxConnPerRoute;
+    }
+
+    public int getMaxConnTotal() {
+        return maxConnTotal;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public int getIoThreadCount() {
+        return ioThreadCount;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public static class Builder {
+
+        private List<HttpHost> hosts = parseHosts(System.getProperty(HOSTS_PROPERTY, DEFAULT_HOSTS));
+        private int maxConnPerRoute = 50;
+        private int maxConnTotal = 200;
+        private long keepAliveMillis = 60_000;
+        private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+        private int connectTimeoutMillis = 1_000;
+        private int socketTimeoutMillis = 30_000;
+        private int connectionRequestTimeoutMillis = 1_000;
+
+        private Builder() {
+        }
+
+        public Builder hosts(HttpHost... hosts) {
+            if (hosts.length == 0) {
+                throw new IllegalArgumentException("At least one host is required");
+            }
+
+            this.hosts = Arrays.asList(hosts);
+            return this;
+        }
+
+        public Builder maxConnPerRoute(int maxConnPerRoute) {
+            this.maxConnPerRoute = positive("maxConnPerRoute", maxConnPerRoute);
+            return this;
+        }
+
+        public Builder maxConnTotal(int maxConnTotal) {
+            this.maxConnTotal = positive("maxConnTotal", maxConnTotal);
+            return this;
+        }
+
+        public Builder keepAliveMillis(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+            return this;
+        }
+
+        public Builder ioThreadCount(int ioThreadCount) {
+            this.ioThreadCount = positive("ioThreadCount", ioThreadCount);
+            return this;
+        }
+
+        public Builder connectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = positive("connectTimeoutMillis", connectTimeoutMillis);
+            return this;
+        }
+
+        public Builder socketTimeoutMillis(int socketTimeoutMillis) {
+            this.socketTimeoutMillis = positive("socketTimeoutMillis", socketTimeoutMillis);
+            return this;
+        }
+
+        public Builder connectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+            this.connectionRequestTimeoutMillis = positive("connectionRequestTimeoutMillis", connectionRequestTimeoutMillis);
+            return this;
+        }
+
+        public ClientSettings build() {
+            if (maxConnTotal < maxConnPerRoute) {
+                throw new IllegalArgumentException("maxConnTotal must not be lower than maxConnPerRoute");
+            }
+
+            return new ClientSettings(this);
+        }
+
+        private static int positive(String name, int value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive");
+            }
+
+            return value;
+        }
+
+        private static List<HttpHost> parseHosts(String hosts) {
+            return Arrays.stream(hosts.split(","))
+                .map(String::trim)
+                .filter(host -> !host.isEmpty())
+                .map(HttpHost::create)
+                .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Low level client that gzips request bodies and asks for gzipped responses.
+ * <p>
+ * Request bodies are wrapped in a {@link GzipEntity}, compressed while they are sent. Responses are requested with
+ * {@code Accept-Encoding: gzip}, which Elasticsearch honours as long as {@code http.compression} is left enabled,
+ * and are kept compressed in the response buffer until they are read. The buffer limit therefore applies to the
+ * compressed size.
+ * <p>
+ * The high level client builds and reads its own entities, only requests sent through this class are compressed.
+ */
+public class CompressingRestClient {
+
+    private static final Header ACCEPT_GZIP = new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+
+    private static final int DEFAULT_BUFFER_LIMIT = 100 * 1024 * 1024;
+
+    private final RestClient lowLevelClient;
+    private final int level;
+    private final HttpAsyncResponseConsumerFactory consumerFactory;
+
+    public CompressingRestClient(RestClient lowLevelClient) {
+        this(lowLevelClient, GzipEntity.DEFAULT_LEVEL, DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * @param level       gzip level of the request bodies, from 1 to 9
+     * @param bufferLimit maximum compressed size of a response
+     */
+    public CompressingRestClient(RestClient lowLevelClient, int level, int bufferLimit) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+
+        if (bufferLimit <= 0) {
+            throw new IllegalArgumentException("bufferLimit must be positive");
+        }
+
+        this.lowLevelClient = lowLevelClient;
+        this.level = level;
+        this.consumerFactory = () -> new DecompressingConsumer(bufferLimit);
+    }
+
+    public Response performRequest(String method, String endpoint, Map<String, String> params, HttpEntity entity,
+                                   Header... headers) throws IOException {
+        return lowLevelClient.performRequest(method, endpoint, params, compress(entity), consumerFactory, acceptGzip(headers));
+    }
+
+    public void performRequestAsync(String method, String endpoint, Map<String, String> params, HttpEntity entity,
+                                    ResponseListener listener, Header... headers) {
+        lowLevelClient.performRequestAsync(method, endpoint, params, compress(entity), consumerFactory, listener, acceptGzip(headers));
+    }
+
+    public RestClient getLowLevelClient() {
+        return lowLevelClient;
+    }
+
+    private HttpEntity compress(HttpEntity entity) {
+        return entity == null ? null : new GzipEntity(entity, level);
+    }
+
+    private static Header[] acceptGzip(Header[] headers) {
+        Header[] all = Arrays.copyOf(headers, headers.length + 1);
+        all[headers.length] = ACCEPT_GZIP;
+
+        return all;
+    }
+
+    /**
+     * The response interceptors of the async client run before the body is consumed, so the entity is only
+     * wrapped once the response was buffered.
+     */
+    private static class DecompressingConsumer extends HeapBufferedAsyncResponseConsumer {
+
+        DecompressingConsumer(int bufferLimit) {
+            super(bufferLimit);
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) throws Exception {
+            HttpResponse response = super.buildResult(context);
+            HttpEntity entity = response.getEntity();
+
+            if (entity != null && entity.getContentEncoding() != null
+                && entity.getContentEncoding().getValue().equalsIgnoreCase("gzip")) {
+                response.setEntity(new GzipDecompressingEntity(entity));
+            }
+
+            return response;
+        }
+    }
+}
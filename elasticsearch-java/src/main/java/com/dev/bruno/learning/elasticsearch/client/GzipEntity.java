@@ -0,0 +1,214 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Request entity that gzips another one while it is sent.
+ * <p>
+ * The body is compressed chunk by chunk as the I/O reactor asks for more content, so neither the plain nor the
+ * compressed body is ever held in memory as a whole. Elasticsearch decompresses any request sent with
+ * {@code Content-Encoding: gzip}.
+ * <p>
+ * The entity is repeatable when the wrapped one is, the RestClient can then retry it on another node.
+ */
+public class GzipEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    /**
+     * Fast level, bulk bodies are repetitive enough that the higher levels barely shrink them further.
+     */
+    public static final int DEFAULT_LEVEL = 3;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, //Magic number
+        Deflater.DEFLATED, //Compression method
+        0, //Flags
+        0, 0, 0, 0, //Modification time
+        0, //Extra flags
+        (byte) 0xff //Unknown operating system
+    };
+
+    private final HttpEntity entity;
+    private final int level;
+
+    private InputStream compressed;
+    private ByteBuffer chunk;
+
+    public GzipEntity(HttpEntity entity) {
+        this(entity, DEFAULT_LEVEL);
+    }
+
+    public GzipEntity(HttpEntity entity, int level) {
+        this.entity = entity;
+        this.level = level;
+
+        setContentType(entity.getContentType());
+        setContentEncoding("gzip");
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return entity.isRepeatable();
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Compressed body, read lazily from the wrapped entity.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return compress(entity.getContent(), level);
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try (InputStream in = getContent()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        if (compressed == null) {
+            compressed = getContent();
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            chunk.flip();
+        }
+
+        //The encoder may take only part of a chunk, the rest waits for the next call
+        if (!chunk.hasRemaining()) {
+            chunk.clear();
+
+            int read = compressed.read(chunk.array(), 0, chunk.capacity());
+            if (read == -1) {
+                encoder.complete();
+                close();
+                return;
+            }
+
+            chunk.limit(read);
+        }
+
+        encoder.write(chunk);
+    }
+
+    /**
+     * Called after every attempt, a retry compresses the body again from the start.
+     */
+    @Override
+    public void close() throws IOException {
+        InputStream stream = compressed;
+
+        compressed = null;
+        chunk = null;
+
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private static InputStream compress(InputStream plain, int level) {
+        CRC32 crc = new CRC32();
+        CountingInputStream counting = new CountingInputStream(new CheckedInputStream(plain, crc));
+        Deflater deflater = new Deflater(level, true);
+
+        InputStream body = new DeflaterInputStream(counting, deflater, CHUNK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                deflater.end();
+            }
+        };
+
+        //The trailer is only built once the body was read, when the checksum and size are known
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int position;
+
+            @Override
+            public boolean hasMoreElements() {
+                return position < 3;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                switch (position++) {
+                    case 0:
+                        return new ByteArrayInputStream(HEADER);
+                    case 1:
+                        return body;
+                    default:
+                        return new ByteArrayInputStream(trailer(crc.getValue(), counting.count));
+                }
+            }
+        });
+    }
+
+    private static byte[] trailer(long crc, long size) {
+        return new byte[]{
+            (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+            (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+        };
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+
+            return read;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import com.dev.bruno.learning.elasticsearch.response.BulkItemFailures;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * HTTP client of a RestClient that records every attempt in a {@link ClientMetrics}.
+ */
+class MeteredHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final ClientMetrics metrics;
+
+    MeteredHttpAsyncClient(CloseableHttpAsyncClient httpClient, ClientMetrics metrics) {
+        this.httpClient = httpClient;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context, FutureCallback<T> callback) {
+        Exchange exchange = new Exchange();
+
+        return httpClient.execute(new MeteredProducer(requestProducer, exchange), new MeteredConsumer<>(responseConsumer, exchange),
+            context, new FutureCallback<T>() {
+                @Override
+                public void completed(T result) {
+                    exchange.completed(result instanceof HttpResponse ? (HttpResponse) result : null);
+
+                    if (callback != null) {
+                        callback.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception exception) {
+                    exchange.failed(exception);
+
+                    if (callback != null) {
+                        callback.failed(exception);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+    }
+
+    @Override
+    public boolean isRunning() {
+        return httpClient.isRunning();
+    }
+
+    @Override
+    public void start() {
+        httpClient.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * Operation and index of an endpoint, see {@link ClientMetrics}.
+     */
+    static String[] operation(String method, String uri) {
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        String[] segments = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+        int length = segments.length == 1 && segments[0].isEmpty() ? 0 : segments.length;
+
+        String index = length > 0 && !segments[0].startsWith("_") ? segments[0] : "_all";
+
+        for (int i = 0; i < length; i++) {
+            //_doc is the type of the document endpoints, not an endpoint
+            if (!segments[i].startsWith("_") || (i == 1 && segments[i].equals("_doc"))) {
+                continue;
+            }
+
+            if (segments[i].equals("_search") && i + 1 < length && segments[i + 1].equals("scroll")) {
+                return new String[]{"scroll", index};
+            }
+
+            return new String[]{segments[i].substring(1), index};
+        }
+
+        if (length == 0) {
+            return new String[]{"info", index};
+        }
+
+        if (length == 1) {
+            return new String[]{"indices", index};
+        }
+
+        switch (method) {
+            case "GET":
+                return new String[]{"get", index};
+            case "HEAD":
+                return new String[]{"exists", index};
+            case "DELETE":
+                return new String[]{"delete", index};
+            default:
+                return new String[]{"index", index};
+        }
+    }
+
+    /**
+     * Counts the items of a bulk response that failed, reading no further than the errors flag when there are none.
+     */
+    static long bulkItemFailures(byte[] body, XContentType xContentType) throws IOException {
+        try (XContentParser parser = xContentType.xContent().createParser(NamedXContentRegistry.EMPTY, body)) {
+            return BulkItemFailures.count(parser);
+        }
+    }
+
+    /**
+     * One attempt, from its start to its outcome.
+     */
+    private class Exchange {
+
+        private final long start = System.nanoTime();
+        private volatile ClientMetrics.Operation operation;
+        private volatile long requestBytes;
+        private volatile long responseBytes;
+
+        void requestGenerated(HttpRequest request) {
+            metrics.leaseWait(System.nanoTime() - start);
+
+            String[] key = operation(request.getRequestLine().getMethod(), request.getRequestLine().getUri());
+            operation = metrics.operation(key[0], key[1]);
+        }
+
+        void completed(HttpResponse response) {
+            if (operation == null) {
+                return;
+            }
+
+            long nanos = System.nanoTime() - start;
+
+            if (response != null && response.getStatusLine().getStatusCode() >= 500) {
+                operation.failed(nanos);
+            } else {
+                operation.completed(nanos);
+            }
+
+            operation.requestBytes(requestBytes);
+            operation.responseBytes(responseBytes);
+
+            if (response != null && response.getStatusLine().getStatusCode() == 200 && response.getEntity() != null
+                && operation.isBulk()) {
+                countBulkItemFailures(response);
+            }
+        }
+
+        void failed(Exception exception) {
+            //Without a generated request the attempt never got a usable connection
+            if (operation == null) {
+                if (exception instanceof ConnectionPoolTimeoutException) {
+                    metrics.leaseTimeout();
+                } else {
+                    metrics.connectFailure();
+                }
+
+                return;
+            }
+
+            operation.failed(System.nanoTime() - start);
+            operation.requestBytes(requestBytes);
+            operation.responseBytes(responseBytes);
+        }
+
+        private void countBulkItemFailures(HttpResponse response) {
+            HttpEntity entity = response.getEntity();
+            Header contentType = entity.getContentType();
+            XContentType xContentType = contentType == null ? null : XContentType.fromMediaTypeOrFormat(contentType.getValue());
+
+            if (xContentType == null) {
+                return;
+            }
+
+            try {
+                byte[] body = EntityUtils.toByteArray(entity);
+
+                //The body can only be read once, the client gets a copy
+                ByteArrayEntity copy = new ByteArrayEntity(body);
+                copy.setContentType(contentType);
+                copy.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(copy);
+
+                operation.bulkItemFailures(bulkItemFailures(body, xContentType));
+            } catch (IOException | RuntimeException e) {
+                //A body that can not be read fails the request when the client reads it, not here
+            }
+        }
+    }
+
+    private static class MeteredProducer implements HttpAsyncRequestProducer {
+
+        private final HttpAsyncRequestProducer producer;
+        private final Exchange exchange;
+
+        MeteredProducer(HttpAsyncRequestProducer producer, Exchange exchange) {
+            this.producer = producer;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public HttpHost getTarget() {
+            return producer.getTarget();
+        }
+
+        @Override
+        public HttpRequest generateRequest() throws IOException, HttpException {
+            HttpRequest request = producer.generateRequest();
+            exchange.requestGenerated(request);
+
+            return request;
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            producer.produceContent(new ContentEncoder() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int written = encoder.write(src);
+                    exchange.requestBytes += written;
+
+                    return written;
+                }
+
+                @Override
+                public void complete() throws IOException {
+                    encoder.complete();
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return encoder.isCompleted();
+                }
+            }, ioControl);
+        }
+
+        @Override
+        public void requestCompleted(HttpContext context) {
+            producer.requestCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception exception) {
+            producer.failed(exception);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return producer.isRepeatable();
+        }
+
+        @Override
+        public void resetRequest() throws IOException {
+            producer.resetRequest();
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.close();
+        }
+    }
+
+    private static class MeteredConsumer<T> implements HttpAsyncResponseConsumer<T> {
+
+        private final HttpAsyncResponseConsumer<T> consumer;
+        private final Exchange exchange;
+
+        MeteredConsumer(HttpAsyncResponseConsumer<T> consumer, Exchange exchange) {
+            this.consumer = consumer;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void responseReceived(HttpResponse response) throws IOException, HttpException {
+            consumer.responseReceived(response);
+        }
+
+        @Override
+        public void consumeContent(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            consumer.consumeContent(new ContentDecoder() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int read = decoder.read(dst);
+
+                    if (read > 0) {
+                        exchange.responseBytes += read;
+                    }
+
+                    return read;
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return decoder.isCompleted();
+                }
+            }, ioControl);
+        }
+
+        @Override
+        public void responseCompleted(HttpContext context) {
+            consumer.responseCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception exception) {
+            consumer.failed(exception);
+        }
+
+        @Override
+        public Exception getException() {
+            return consumer.getException();
+        }
+
+        @Override
+        public T getResult() {
+            return consumer.getResult();
+        }
+
+        @Override
+        public boolean isDone() {
+            return consumer.isDone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            consumer.close();
+        }
+
+        @Override
+        public boolean cancel() {
+            return consumer.cancel();
+        }
+    }
+}
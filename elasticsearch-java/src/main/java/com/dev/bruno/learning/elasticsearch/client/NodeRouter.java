@@ -0,0 +1,445 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Picks the node of every request sent by a client created with {@link ClientFactory#create(ClientSettings, NodeRouter)}.
+ * <p>
+ * The RestClient of 6.2 only rotates over its hosts, so the router sits below it, in the HTTP client, and sends each
+ * attempt to the node it selects: the high level client, the low level client and the retries of the RestClient all
+ * go through it. A node that fails a request, or answers 502, 503 or 504, is ejected for a timeout that doubles
+ * with every consecutive failure and gets requests again once it expires; the first success recovers it.
+ * <p>
+ * The nodes are discovered from {@code _nodes/http} every {@code sniffIntervalMillis} and shortly after a failure.
+ * Only the data nodes are kept when the cluster has any, so the load is spread over them instead of a single
+ * coordinating node. The hosts of the ClientSettings are the seeds, used until the first discovery.
+ * <p>
+ * A router belongs to one client and is closed with it.
+ */
+public class NodeRouter implements Closeable {
+
+    /**
+     * Weight of the last response in the moving average of the latency of a node.
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private static final String NODES_ENDPOINT = "/_nodes/http?filter_path=nodes.*.http.publish_address,nodes.*.roles";
+    private static final JsonFieldReader NODES_READER = JsonFieldReader.of("nodes.*.http.publish_address", "nodes.*.roles.*");
+
+    private final Selection selection;
+    private final long sniffIntervalMillis;
+    private final boolean sniffOnFailure;
+    private final long sniffAfterFailureDelayMillis;
+    private final long deadTimeoutMillis;
+    private final long maxDeadTimeoutMillis;
+
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private final AtomicBoolean sniffPending = new AtomicBoolean();
+    private final ThreadLocal<HttpHost> preferred = new ThreadLocal<>();
+
+    private volatile List<Node> nodes = Collections.emptyList();
+    private String scheme = "http";
+    private CloseableHttpAsyncClient httpClient;
+    private ScheduledExecutorService scheduler;
+
+    private NodeRouter(Builder builder) {
+        this.selection = builder.selection;
+        this.sniffIntervalMillis = builder.sniffIntervalMillis;
+        this.sniffOnFailure = builder.sniffOnFailure;
+        this.sniffAfterFailureDelayMillis = builder.sniffAfterFailureDelayMillis;
+        this.deadTimeoutMillis = builder.deadTimeoutMillis;
+        this.maxDeadTimeoutMillis = builder.maxDeadTimeoutMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public enum Selection {
+        /**
+         * Every node in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The node with the fewest requests in flight.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * The best of two random nodes, by average latency times the requests in flight. Cheap to compute and avoids
+         * sending every request to the single fastest node.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    public List<HttpHost> getNodes() {
+        return nodes.stream().map(node -> node.host).collect(Collectors.toList());
+    }
+
+    public boolean isAlive(HttpHost host) {
+        long now = System.nanoTime();
+
+        return nodes.stream().anyMatch(node -> node.host.equals(host) && node.isAlive(now));
+    }
+
+    /**
+     * Replaces the nodes by the ones listed by {@code _nodes/http}, asking each live node in turn.
+     */
+    public void sniff() throws IOException {
+        IOException failure = null;
+
+        for (Node node : aliveFirst()) {
+            try {
+                List<HttpHost> hosts = readNodes(node.host);
+
+                if (!hosts.isEmpty()) {
+                    setNodes(hosts);
+                }
+
+                return;
+            } catch (IOException e) {
+                failed(node);
+                failure = e;
+            }
+        }
+
+        throw failure != null ? failure : new IOException("No node to sniff from");
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Wraps the HTTP client built for the RestClient, called once by {@link ClientFactory}.
+     */
+    synchronized CloseableHttpAsyncClient attach(CloseableHttpAsyncClient httpClient, List<HttpHost> seeds) {
+        if (this.httpClient != null) {
+            throw new IllegalStateException("The router is already used by another client");
+        }
+
+        this.httpClient = httpClient;
+        this.scheme = seeds.get(0).getSchemeName();
+        setNodes(seeds);
+
+        if (sniffIntervalMillis > 0 || sniffOnFailure) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "elasticsearch-sniffer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return new RoutingHttpAsyncClient(httpClient, this);
+    }
+
+    void started() {
+        if (sniffIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::sniffQuietly, 0, sniffIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the first attempt of the requests started by the call to the given node, when it is known and alive.
+     * The RestClient starts a request on the calling thread, so this applies to the async methods too.
+     */
+    <T> T preferring(HttpHost host, Call<T> call) throws IOException {
+        preferred.set(host);
+
+        try {
+            return call.call();
+        } finally {
+            preferred.remove();
+        }
+    }
+
+    Node select() {
+        List<Node> current = nodes;
+        long now = System.nanoTime();
+
+        HttpHost preferredHost = preferred.get();
+        if (preferredHost != null) {
+            //Only the first attempt, the retries are routed as usual
+            preferred.remove();
+
+            for (Node node : current) {
+                if (node.host.equals(preferredHost) && node.isAlive(now)) {
+                    return node;
+                }
+            }
+        }
+
+        List<Node> alive = new ArrayList<>(current.size());
+        for (Node node : current) {
+            if (node.isAlive(now)) {
+                alive.add(node);
+            }
+        }
+
+        if (alive.isEmpty()) {
+            //Every node is ejected, the one whose timeout ends first is tried again
+            return Collections.min(current, (a, b) -> Long.compare(a.deadUntil - now, b.deadUntil - now));
+        }
+
+        int start = Math.floorMod(roundRobin.getAndIncrement(), alive.size());
+
+        switch (selection) {
+            case LEAST_OUTSTANDING:
+                //Starting from the next node in turn spreads the ties
+                Node least = alive.get(start);
+                for (int i = 1; i < alive.size(); i++) {
+                    Node node = alive.get((start + i) % alive.size());
+                    if (node.outstanding.get() < least.outstanding.get()) {
+                        least = node;
+                    }
+                }
+                return least;
+            case LATENCY_WEIGHTED:
+                if (alive.size() == 1) {
+                    return alive.get(0);
+                }
+
+                int first = ThreadLocalRandom.current().nextInt(alive.size());
+                int second = (first + 1 + ThreadLocalRandom.current().nextInt(alive.size() - 1)) % alive.size();
+
+                return alive.get(first).score() <= alive.get(second).score() ? alive.get(first) : alive.get(second);
+            default:
+                return alive.get(start);
+        }
+    }
+
+    void succeeded(Node node, long latencyNanos) {
+        node.failures.set(0);
+        node.deadUntil = 0;
+
+        double latency = latencyNanos / 1_000_000.0;
+        double average = node.averageLatencyMillis;
+        node.averageLatencyMillis = average == 0 ? latency : average + LATENCY_WEIGHT * (latency - average);
+    }
+
+    void failed(Node node) {
+        int failures = node.failures.incrementAndGet();
+        long timeout = Math.min(maxDeadTimeoutMillis, deadTimeoutMillis << Math.min(failures - 1, 30));
+
+        node.deadUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        if (sniffOnFailure && sniffPending.compareAndSet(false, true)) {
+            try {
+                //Failures come from the I/O reactor threads, the sniff must not block them
+                scheduler.schedule(() -> {
+                    sniffPending.set(false);
+                    sniffQuietly();
+                }, sniffAfterFailureDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //The client is closing
+            }
+        }
+    }
+
+    private void sniffQuietly() {
+        try {
+            sniff();
+        } catch (IOException e) {
+            //The current nodes are kept, the next sniff tries again
+        }
+    }
+
+    private List<HttpHost> readNodes(HttpHost host) throws IOException {
+        HttpResponse response;
+
+        try {
+            response = httpClient.execute(
+                new BasicAsyncRequestProducer(host, new BasicHttpRequest("GET", NODES_ENDPOINT)),
+                new BasicAsyncResponseConsumer(), null).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sniffing " + host, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not sniff " + host, e.getCause());
+        }
+
+        if (response.getStatusLine().getStatusCode() != 200) {
+            throw new IOException("Could not sniff " + host + ": " + response.getStatusLine());
+        }
+
+        return hosts(NODES_READER.read(response.getEntity().getContent()));
+    }
+
+    private List<HttpHost> hosts(JsonFields nodesInfo) {
+        Map<String, HttpHost> all = new LinkedHashMap<>();
+        Set<String> data = new HashSet<>();
+
+        //nodes.<id>.http.publish_address and nodes.<id>.roles.<n>, node ids have no dots
+        for (Map.Entry<String, String> field : nodesInfo.asMap().entrySet()) {
+            String[] path = field.getKey().split("\\.");
+
+            //Nodes with HTTP disabled have no http section
+            if (path[2].equals("http")) {
+                all.put(path[1], httpHost(scheme, field.getValue()));
+            } else if (field.getValue().equals("data")) {
+                data.add(path[1]);
+            }
+        }
+
+        List<HttpHost> dataHosts = all.entrySet().stream()
+            .filter(node -> data.contains(node.getKey()))
+            .map(Map.Entry::getValue)
+            .collect(Collectors.toList());
+
+        return dataHosts.isEmpty() ? new ArrayList<>(all.values()) : dataHosts;
+    }
+
+    private synchronized void setNodes(List<HttpHost> hosts) {
+        Map<HttpHost, Node> known = new HashMap<>();
+        for (Node node : nodes) {
+            known.put(node.host, node);
+        }
+
+        //The nodes that are still there keep their statistics
+        nodes = Collections.unmodifiableList(hosts.stream()
+            .distinct()
+            .map(host -> known.getOrDefault(host, new Node(host)))
+            .collect(Collectors.toList()));
+    }
+
+    private List<Node> aliveFirst() {
+        long now = System.nanoTime();
+        List<Node> ordered = new ArrayList<>(nodes);
+        ordered.sort((a, b) -> Boolean.compare(!a.isAlive(now), !b.isAlive(now)));
+
+        return ordered;
+    }
+
+    /**
+     * The address of a node as listed by {@code _nodes/http}, either ip:port or hostname/ip:port.
+     */
+    static HttpHost httpHost(String scheme, String publishAddress) {
+        return HttpHost.create(scheme + "://" + publishAddress.substring(publishAddress.lastIndexOf('/') + 1));
+    }
+
+    String scheme() {
+        return scheme;
+    }
+
+    interface Call<T> {
+
+        T call() throws IOException;
+    }
+
+    static class Node {
+
+        final HttpHost host;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        //Written without synchronization, a lost update only skews the statistics a little
+        volatile double averageLatencyMillis;
+        volatile long deadUntil;
+
+        Node(HttpHost host) {
+            this.host = host;
+        }
+
+        boolean isAlive(long now) {
+            return failures.get() == 0 || now - deadUntil >= 0;
+        }
+
+        double score() {
+            return (averageLatencyMillis + 1) * (outstanding.get() + 1);
+        }
+    }
+
+    public static class Builder {
+
+        private Selection selection = Selection.LATENCY_WEIGHTED;
+        private long sniffIntervalMillis = 5 * 60 * 1000;
+        private boolean sniffOnFailure = true;
+        private long sniffAfterFailureDelayMillis = 1000;
+        private long deadTimeoutMillis = 1000;
+        private long maxDeadTimeoutMillis = 5 * 60 * 1000;
+
+        private Builder() {
+        }
+
+        public Builder selection(Selection selection) {
+            this.selection = selection;
+            return this;
+        }
+
+        /**
+         * 0 disables the periodic discovery.
+         */
+        public Builder sniffIntervalMillis(long sniffIntervalMillis) {
+            if (sniffIntervalMillis < 0) {
+                throw new IllegalArgumentException("sniffIntervalMillis must not be negative");
+            }
+
+            this.sniffIntervalMillis = sniffIntervalMillis;
+            return this;
+        }
+
+        public Builder sniffOnFailure(boolean sniffOnFailure) {
+            this.sniffOnFailure = sniffOnFailure;
+            return this;
+        }
+
+        /**
+         * Delay between a failure and the discovery it triggers, the failures in between share that discovery.
+         */
+        public Builder sniffAfterFailureDelayMillis(long sniffAfterFailureDelayMillis) {
+            if (sniffAfterFailureDelayMillis < 0) {
+                throw new IllegalArgumentException("sniffAfterFailureDelayMillis must not be negative");
+            }
+
+            this.sniffAfterFailureDelayMillis = sniffAfterFailureDelayMillis;
+            return this;
+        }
+
+        /**
+         * Ejection time after the first failure of a node, doubled after every consecutive failure up to
+         * maxDeadTimeoutMillis.
+         */
+        public Builder deadTimeoutMillis(long deadTimeoutMillis, long maxDeadTimeoutMillis) {
+            if (deadTimeoutMillis <= 0 || maxDeadTimeoutMillis < deadTimeoutMillis) {
+                throw new IllegalArgumentException("deadTimeoutMillis must be positive and not above maxDeadTimeoutMillis");
+            }
+
+            this.deadTimeoutMillis = deadTimeoutMillis;
+            this.maxDeadTimeoutMillis = maxDeadTimeoutMillis;
+            return this;
+        }
+
+        public NodeRouter build() {
+            return new NodeRouter(this);
+        }
+    }
+}
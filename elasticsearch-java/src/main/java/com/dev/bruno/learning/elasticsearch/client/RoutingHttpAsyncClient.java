@@ -0,0 +1,153 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * HTTP client of a RestClient that sends every request to the node chosen by a {@link NodeRouter} instead of the
+ * host picked by the RestClient, and reports the outcome back to the router.
+ */
+class RoutingHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final NodeRouter router;
+
+    RoutingHttpAsyncClient(CloseableHttpAsyncClient httpClient, NodeRouter router) {
+        this.httpClient = httpClient;
+        this.router = router;
+    }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context, FutureCallback<T> callback) {
+        NodeRouter.Node node = router.select();
+        node.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+
+        return httpClient.execute(new RoutedProducer(requestProducer, node.host), responseConsumer, context, new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+                node.outstanding.decrementAndGet();
+
+                if (result instanceof HttpResponse && isUnavailable(((HttpResponse) result).getStatusLine().getStatusCode())) {
+                    router.failed(node);
+                } else {
+                    router.succeeded(node, System.nanoTime() - start);
+                }
+
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception exception) {
+                node.outstanding.decrementAndGet();
+                router.failed(node);
+
+                if (callback != null) {
+                    callback.failed(exception);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                node.outstanding.decrementAndGet();
+
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isRunning() {
+        return httpClient.isRunning();
+    }
+
+    @Override
+    public void start() {
+        httpClient.start();
+        router.started();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            router.close();
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Same status codes as the RestClient uses to mark a host dead.
+     */
+    private static boolean isUnavailable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    private static class RoutedProducer implements HttpAsyncRequestProducer {
+
+        private final HttpAsyncRequestProducer producer;
+        private final HttpHost target;
+
+        RoutedProducer(HttpAsyncRequestProducer producer, HttpHost target) {
+            this.producer = producer;
+            this.target = target;
+        }
+
+        @Override
+        public HttpHost getTarget() {
+            return target;
+        }
+
+        @Override
+        public HttpRequest generateRequest() throws IOException, HttpException {
+            return producer.generateRequest();
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            producer.produceContent(encoder, ioControl);
+        }
+
+        @Override
+        public void requestCompleted(HttpContext context) {
+            producer.requestCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception exception) {
+            producer.failed(exception);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return producer.isRepeatable();
+        }
+
+        @Override
+        public void resetRequest() throws IOException {
+            producer.resetRequest();
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.close();
+        }
+    }
+}
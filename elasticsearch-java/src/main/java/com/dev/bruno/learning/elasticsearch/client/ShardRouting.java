@@ -0,0 +1,338 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import org.apache.http.HttpHost;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends document writes and gets straight to a node holding their shard, saving the hop from the node that
+ * happens to receive the request to the one that holds the shard.
+ * <p>
+ * The shard of a document is computed as Elasticsearch does, from the murmur3 hash of its routing (the id unless a
+ * routing is set), with the shard counts and routing partition size of the index and the routing table read from
+ * {@code _cluster/state}. Writes go to the node of the primary, gets to any started copy. The table of an index is
+ * read on its first request and again once it is older than {@code refreshIntervalMillis} or after a request that
+ * could not reach its node or found its shard unavailable (503), so relocations, new nodes and failovers are picked
+ * up.
+ * <p>
+ * Requests that can not be routed (no id yet, a preference, an alias to several indices, a node the
+ * {@link NodeRouter} does not know or considers dead) are sent as usual, so the mode never makes a request fail.
+ */
+public class ShardRouting {
+
+    private static final String METADATA = "metadata.indices";
+    private static final String ROUTING_TABLE = "routing_table.indices";
+    private static final String NUMBER_OF_SHARDS = "settings.index.number_of_shards";
+    private static final String ROUTING_PARTITION_SIZE = "settings.index.routing_partition_size";
+    private static final String ROUTING_NUM_SHARDS = "routing_num_shards";
+
+    private static final Map<String, String> STATE_PARAMS = Collections.singletonMap("filter_path",
+        "metadata.indices.*.settings.index,metadata.indices.*.routing_num_shards,routing_table.indices.*.shards");
+    private static final Map<String, String> NODES_PARAMS = Collections.singletonMap("filter_path", "nodes.*.http.publish_address");
+
+    private static final JsonFieldReader STATE_READER = JsonFieldReader.of(METADATA, ROUTING_TABLE);
+    private static final JsonFieldReader NODES_READER = JsonFieldReader.of("nodes.*.http.publish_address");
+    private static final JsonFieldReader INDICES_READER = JsonFieldReader.of("*");
+    private static final JsonFieldReader METADATA_READER = JsonFieldReader.of(NUMBER_OF_SHARDS, ROUTING_PARTITION_SIZE, ROUTING_NUM_SHARDS);
+    private static final JsonFieldReader SHARDS_READER = JsonFieldReader.of("shards.*.*.node", "shards.*.*.state", "shards.*.*.primary");
+
+    private final RestHighLevelClient highLevelClient;
+    private final NodeRouter router;
+    private final long refreshIntervalNanos;
+
+    private final ConcurrentMap<String, IndexShards> indices = new ConcurrentHashMap<>();
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong unrouted = new AtomicLong();
+
+    private ShardRouting(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.router = builder.router;
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.refreshIntervalMillis);
+    }
+
+    /**
+     * @param highLevelClient a client created with the router, see {@link ClientFactory#create(ClientSettings, NodeRouter)}
+     */
+    public static Builder builder(RestHighLevelClient highLevelClient, NodeRouter router) {
+        return new Builder(highLevelClient, router);
+    }
+
+    public IndexResponse index(IndexRequest request) throws IOException {
+        HttpHost node = request.id() == null ? null : node(request.index(), request.id(), request.routing(), true);
+
+        return call(request.index(), node, () -> highLevelClient.index(request));
+    }
+
+    public GetResponse get(GetRequest request) throws IOException {
+        //A preference already says which copy must answer
+        HttpHost node = request.preference() != null ? null : node(request.index(), request.id(), request.routing(), false);
+
+        return call(request.index(), node, () -> highLevelClient.get(request));
+    }
+
+    public UpdateResponse update(UpdateRequest request) throws IOException {
+        HttpHost node = node(request.index(), request.id(), request.routing(), true);
+
+        return call(request.index(), node, () -> highLevelClient.update(request));
+    }
+
+    public DeleteResponse delete(DeleteRequest request) throws IOException {
+        HttpHost node = node(request.index(), request.id(), request.routing(), true);
+
+        return call(request.index(), node, () -> highLevelClient.delete(request));
+    }
+
+    /**
+     * @return the node that should receive the request, null when it can not be known
+     */
+    public HttpHost node(String index, String id, String routing, boolean primary) throws IOException {
+        IndexShards shards = shards(index);
+
+        if (shards == null) {
+            return null;
+        }
+
+        int shard = shards.shard(id, routing);
+
+        if (primary) {
+            return shards.primaries[shard];
+        }
+
+        List<HttpHost> copies = shards.copies.get(shard);
+
+        return copies.isEmpty() ? null : copies.get(ThreadLocalRandom.current().nextInt(copies.size()));
+    }
+
+    /**
+     * Forgets every routing table, they are read again on the next requests.
+     */
+    public void invalidateAll() {
+        indices.clear();
+    }
+
+    public long getRouted() {
+        return routed.get();
+    }
+
+    public long getUnrouted() {
+        return unrouted.get();
+    }
+
+    private <T> T call(String index, HttpHost node, NodeRouter.Call<T> call) throws IOException {
+        if (node == null) {
+            unrouted.incrementAndGet();
+            return call.call();
+        }
+
+        routed.incrementAndGet();
+
+        try {
+            return router.preferring(node, call);
+        } catch (IOException | RuntimeException e) {
+            //The shard may have moved, its node may be gone
+            if (isStale(e)) {
+                indices.remove(index);
+            }
+
+            throw e;
+        }
+    }
+
+    private IndexShards shards(String index) throws IOException {
+        IndexShards shards = indices.get(index);
+
+        if (shards == null || System.nanoTime() - shards.loadedAt > refreshIntervalNanos) {
+            shards = load(index);
+            indices.put(index, shards);
+        }
+
+        return shards.primaries == null ? null : shards;
+    }
+
+    private IndexShards load(String index) throws IOException {
+        JsonFields state;
+        JsonFields nodes;
+
+        try {
+            state = read("/_cluster/state/metadata,routing_table/" + index, STATE_PARAMS, STATE_READER);
+            nodes = read("/_nodes/http", NODES_PARAMS, NODES_READER);
+        } catch (ResponseException e) {
+            //Missing index or no access to the cluster state, the requests are sent as usual until the next refresh
+            return IndexShards.unroutable();
+        }
+
+        //Index names may hold dots, so every index is read as its JSON and its fields from that JSON
+        Map<String, String> metadata = state.contains(METADATA) ? read(INDICES_READER, state.getString(METADATA)).asMap() : Collections.emptyMap();
+        Map<String, String> routingTable = state.contains(ROUTING_TABLE) ? read(INDICES_READER, state.getString(ROUTING_TABLE)).asMap() : Collections.emptyMap();
+
+        //An alias to several indices, or an index that is not there yet
+        if (metadata.size() != 1 || routingTable.size() != 1) {
+            return IndexShards.unroutable();
+        }
+
+        Map<String, HttpHost> hosts = new HashMap<>();
+        for (Map.Entry<String, String> address : nodes.asMap().entrySet()) {
+            //nodes.<id>.http.publish_address, node ids have no dots
+            hosts.put(address.getKey().split("\\.")[1], NodeRouter.httpHost(router.scheme(), address.getValue()));
+        }
+
+        JsonFields settings = read(METADATA_READER, metadata.values().iterator().next());
+        int numberOfShards = settings.getInt(NUMBER_OF_SHARDS);
+
+        //Set on every index, it differs from the number of shards once an index was split or shrunk
+        int routingNumShards = settings.contains(ROUTING_NUM_SHARDS) ? settings.getInt(ROUTING_NUM_SHARDS) : numberOfShards;
+        int partitionSize = settings.contains(ROUTING_PARTITION_SIZE) ? settings.getInt(ROUTING_PARTITION_SIZE) : 1;
+
+        IndexShards shards = new IndexShards(numberOfShards, routingNumShards, partitionSize);
+        JsonFields table = read(SHARDS_READER, routingTable.values().iterator().next());
+
+        for (Map.Entry<String, String> node : table.asMap().entrySet()) {
+            if (!node.getKey().endsWith(".node")) {
+                continue;
+            }
+
+            //shards.<shard>.<copy>.node
+            String copy = node.getKey().substring(0, node.getKey().length() - "node".length());
+            String copyState = table.contains(copy + "state") ? table.getString(copy + "state") : null;
+            HttpHost host = hosts.get(node.getValue());
+
+            if (host == null || (!"STARTED".equals(copyState) && !"RELOCATING".equals(copyState))) {
+                continue;
+            }
+
+            int id = Integer.parseInt(copy.split("\\.")[1]);
+            shards.copies.get(id).add(host);
+
+            if (table.contains(copy + "primary") && table.getBoolean(copy + "primary")) {
+                shards.primaries[id] = host;
+            }
+        }
+
+        return shards;
+    }
+
+    private JsonFields read(String endpoint, Map<String, String> params, JsonFieldReader reader) throws IOException {
+        Response response = highLevelClient.getLowLevelClient().performRequest("GET", endpoint, params);
+
+        return reader.read(response.getEntity().getContent());
+    }
+
+    private static JsonFields read(JsonFieldReader reader, String json) throws IOException {
+        return reader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Failures meaning that the table is out of date: the node can not be reached or the shard is not available on
+     * it. A conflict, a missing document or a rejected request are answers of the right shard.
+     */
+    private static boolean isStale(Exception e) {
+        if (e instanceof ResponseException) {
+            return ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == RestStatus.SERVICE_UNAVAILABLE.getStatus();
+        }
+
+        if (e instanceof ElasticsearchException) {
+            return ((ElasticsearchException) e).status() == RestStatus.SERVICE_UNAVAILABLE;
+        }
+
+        return e instanceof IOException;
+    }
+
+    private static class IndexShards {
+
+        private final long loadedAt = System.nanoTime();
+        private final int routingFactor;
+        private final int routingNumShards;
+        private final int partitionSize;
+        private final HttpHost[] primaries;
+        private final List<List<HttpHost>> copies;
+
+        IndexShards(int numberOfShards, int routingNumShards, int partitionSize) {
+            this.routingNumShards = routingNumShards;
+            this.routingFactor = routingNumShards / numberOfShards;
+            this.partitionSize = partitionSize;
+            this.primaries = new HttpHost[numberOfShards];
+            this.copies = new ArrayList<>(numberOfShards);
+
+            for (int i = 0; i < numberOfShards; i++) {
+                copies.add(new ArrayList<>());
+            }
+        }
+
+        private IndexShards() {
+            this.routingNumShards = 0;
+            this.routingFactor = 0;
+            this.partitionSize = 0;
+            this.primaries = null;
+            this.copies = null;
+        }
+
+        static IndexShards unroutable() {
+            return new IndexShards();
+        }
+
+        /**
+         * Same computation as OperationRouting.generateShardId.
+         */
+        int shard(String id, String routing) {
+            String effectiveRouting = routing != null ? routing : id;
+            int partitionOffset = routing != null && partitionSize > 1 ? Math.floorMod(Murmur3HashFunction.hash(id), partitionSize) : 0;
+
+            int hash = Murmur3HashFunction.hash(effectiveRouting) + partitionOffset;
+
+            return Math.floorMod(hash, routingNumShards) / routingFactor;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private final NodeRouter router;
+        private long refreshIntervalMillis = 30_000;
+
+        private Builder(RestHighLevelClient highLevelClient, NodeRouter router) {
+            this.highLevelClient = highLevelClient;
+            this.router = router;
+        }
+
+        public Builder refreshIntervalMillis(long refreshIntervalMillis) {
+            if (refreshIntervalMillis <= 0) {
+                throw new IllegalArgumentException("refreshIntervalMillis must be positive");
+            }
+
+            this.refreshIntervalMillis = refreshIntervalMillis;
+            return this;
+        }
+
+        public ShardRouting build() {
+            return new ShardRouting(this);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Lease on the client shared through {@link ClientFactory#shared()}. Closing the lease does not close the client
+ * while other leases are still open.
+ */
+public class SharedClient implements Closeable {
+
+    private final ClientFactory.SharedState state;
+    private boolean closed;
+
+    SharedClient(ClientFactory.SharedState state) {
+        this.state = state;
+    }
+
+    public RestHighLevelClient highLevelClient() {
+        return state.highLevelClient();
+    }
+
+    public RestClient lowLevelClient() {
+        return state.highLevelClient().getLowLevelClient();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            ClientFactory.release(state);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor for code that keeps using the blocking API of the clients.
+ * <p>
+ * On Java 21 or later every task runs on its own virtual thread. The blocking calls of the clients wait on a
+ * CountDownLatch, which unmounts the virtual thread instead of pinning its carrier, so a blocked call costs a few
+ * hundred bytes of stack rather than a platform thread. On older runtimes the executor falls back to a cached pool
+ * of daemon threads.
+ * <p>
+ * The project is compiled for Java 8, the virtual thread executor is looked up at runtime. The jdk21 profile of
+ * the pom traces any pinned thread during the tests.
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * A new executor, to be shut down by the caller.
+     */
+    public static ExecutorService executor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual thread executor could not be created", e);
+            }
+        }
+
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "blocking-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.dev.bruno.learning.elasticsearch.geo;
+
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.vividsolutions.jts.geom.Coordinate;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.geo.ShapeRelation;
+import org.elasticsearch.common.geo.builders.CoordinatesBuilder;
+import org.elasticsearch.common.geo.builders.EnvelopeBuilder;
+import org.elasticsearch.common.geo.builders.PolygonBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoHashGrid;
+import org.elasticsearch.search.aggregations.metrics.geocentroid.GeoCentroid;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Viewport queries of a map on a geo field, built for the cheapest query the field supports.
+ * <p>
+ * A {@code geo_point} field is filtered with {@code geo_bounding_box}, a plain range check on the indexed points,
+ * instead of the {@code geo_shape} query that has to intersect the prefix tree of every shape. {@link #clusters}
+ * answers with a {@code geohash_grid} of the viewport, its precision scaled to the zoom so the number of cells
+ * stays about the number that fit on the screen, and the {@code geo_centroid} of every cell: a tile is drawn from
+ * a few hundred buckets instead of every matching document. The grid needs a {@code geo_point} field; index shapes
+ * with a point of their own to cluster them.
+ * <p>
+ * The polygons of {@link #polygonQuery} are simplified to the size of a pixel before they are sent.
+ * <p>
+ * The type of the field is read from its mapping on first use.
+ */
+public class GeoSearch {
+
+    private static final String CELLS = "cells";
+    private static final String CENTROID = "centroid";
+
+    private static final JsonFieldReader TYPE_READER = JsonFieldReader.of("*.mappings.*.*.mapping.*.type");
+
+    public enum FieldType {
+        GEO_POINT, GEO_SHAPE
+    }
+
+    private final RestHighLevelClient highLevelClient;
+    private final String index;
+    private final String field;
+    private final int cellPixels;
+    private final int maxCells;
+
+    private volatile FieldType fieldType;
+
+    private GeoSearch(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.index = builder.index;
+        this.field = builder.field;
+        this.cellPixels = builder.cellPixels;
+        this.maxCells = builder.maxCells;
+        this.fieldType = builder.fieldType;
+    }
+
+    public static Builder builder(RestHighLevelClient highLevelClient, String index, String field) {
+        return new Builder(highLevelClient, index, field);
+    }
+
+    /**
+     * Matches the documents whose point is in the viewport, or whose shape intersects it.
+     */
+    public QueryBuilder viewportQuery(GeoViewport viewport) throws IOException {
+        if (fieldType() == FieldType.GEO_POINT) {
+            //Crossing the antimeridian is supported by the query itself
+            return QueryBuilders.geoBoundingBoxQuery(field)
+                .setCorners(viewport.getNorth(), viewport.getWest(), viewport.getSouth(), viewport.getEast());
+        }
+
+        if (!viewport.crossesAntimeridian()) {
+            return envelopeQuery(viewport.getWest(), viewport.getEast(), viewport);
+        }
+
+        return QueryBuilders.boolQuery()
+            .should(envelopeQuery(viewport.getWest(), 180, viewport))
+            .should(envelopeQuery(-180, viewport.getEast(), viewport))
+            .minimumShouldMatch(1);
+    }
+
+    /**
+     * Matches the documents in the polygon, simplified to the pixel size of the viewport.
+     *
+     * @param ring the exterior ring of the polygon, longitude as x, ending on its first point
+     */
+    public QueryBuilder polygonQuery(List<Coordinate> ring, GeoViewport viewport) throws IOException {
+        List<Coordinate> simplified = ShapeSimplifier.simplifyRing(ring, viewport.pixelDegrees());
+
+        if (fieldType() == FieldType.GEO_POINT) {
+            List<GeoPoint> points = simplified.stream()
+                .map(coordinate -> new GeoPoint(coordinate.y, coordinate.x))
+                .collect(Collectors.toList());
+
+            return QueryBuilders.geoPolygonQuery(field, points);
+        }
+
+        PolygonBuilder polygon = new PolygonBuilder(new CoordinatesBuilder().coordinates(simplified));
+
+        return QueryBuilders.geoShapeQuery(field, polygon).relation(ShapeRelation.INTERSECTS);
+    }
+
+    /**
+     * The documents in the viewport, for the zoom levels where they can be drawn one by one.
+     */
+    public SearchResponse search(GeoViewport viewport, QueryBuilder filter, int size) throws IOException {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+            .query(filtered(viewport, filter))
+            .size(size);
+
+        return highLevelClient.search(new SearchRequest(index).source(source));
+    }
+
+    /**
+     * The documents in the viewport grouped in cells of about {@code cellPixels}, with their count and centroid.
+     *
+     * @param filter restricts the documents, null for all of them
+     */
+    public List<Cluster> clusters(GeoViewport viewport, QueryBuilder filter) throws IOException {
+        if (fieldType() != FieldType.GEO_POINT) {
+            throw new IllegalStateException("The geohash grid needs a geo_point field, " + field + " is a geo_shape");
+        }
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+            .query(filtered(viewport, filter))
+            .size(0)
+            .aggregation(AggregationBuilders.geohashGrid(CELLS)
+                .field(field)
+                .precision(viewport.geohashPrecision(cellPixels))
+                .size(maxCells)
+                .subAggregation(AggregationBuilders.geoCentroid(CENTROID).field(field)));
+
+        SearchResponse response = highLevelClient.search(new SearchRequest(index).source(source));
+        GeoHashGrid grid = response.getAggregations().get(CELLS);
+
+        List<Cluster> clusters = new ArrayList<>(grid.getBuckets().size());
+
+        for (GeoHashGrid.Bucket bucket : grid.getBuckets()) {
+            GeoCentroid centroid = bucket.getAggregations().get(CENTROID);
+
+            clusters.add(new Cluster(bucket.getKeyAsString(), bucket.getDocCount(), centroid.centroid()));
+        }
+
+        return clusters;
+    }
+
+    public FieldType fieldType() throws IOException {
+        if (fieldType == null) {
+            fieldType = readFieldType();
+        }
+
+        return fieldType;
+    }
+
+    RestHighLevelClient highLevelClient() {
+        return highLevelClient;
+    }
+
+    String index() {
+        return index;
+    }
+
+    QueryBuilder filtered(GeoViewport viewport, QueryBuilder filter) throws IOException {
+        BoolQueryBuilder query = QueryBuilders.boolQuery().filter(viewportQuery(viewport));
+
+        if (filter != null) {
+            query.filter(filter);
+        }
+
+        return query;
+    }
+
+    private QueryBuilder envelopeQuery(double west, double east, GeoViewport viewport) throws IOException {
+        EnvelopeBuilder envelope = new EnvelopeBuilder(new Coordinate(west, viewport.getNorth()), new Coordinate(east, viewport.getSouth()));
+
+        //Shapes partially in the viewport are drawn too
+        return QueryBuilders.geoShapeQuery(field, envelope).relation(ShapeRelation.INTERSECTS);
+    }
+
+    private FieldType readFieldType() throws IOException {
+        Response response = highLevelClient.getLowLevelClient().performRequest("GET", "/" + index + "/_mapping/field/" + field);
+
+        //index -> mappings -> type -> field -> mapping -> leaf name -> type, read as values since names may hold dots
+        for (String type : TYPE_READER.read(response.getEntity().getContent()).asMap().values()) {
+            if ("geo_point".equals(type)) {
+                return FieldType.GEO_POINT;
+            }
+
+            if ("geo_shape".equals(type)) {
+                return FieldType.GEO_SHAPE;
+            }
+
+            throw new IllegalArgumentException(field + " of " + index + " is a " + type + ", not a geo field");
+        }
+
+        throw new IllegalArgumentException(field + " is not mapped in " + index);
+    }
+
+    public static class Cluster {
+
+        private final String geohash;
+        private final long count;
+        private final GeoPoint centroid;
+
+        Cluster(String geohash, long count, GeoPoint centroid) {
+            this.geohash = geohash;
+            this.count = count;
+            this.centroid = centroid;
+        }
+
+        public String getGeohash() {
+            return geohash;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The mean position of the documents of the cell, where the marker of the cluster is drawn.
+         */
+        public GeoPoint getCentroid() {
+            return centroid;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private final String index;
+        private final String field;
+        private int cellPixels = 64;
+        private int maxCells = 10_000;
+        private FieldType fieldType;
+
+        private Builder(RestHighLevelClient highLevelClient, String index, String field) {
+            this.highLevelClient = highLevelClient;
+            this.index = index;
+            this.field = field;
+        }
+
+        /**
+         * Smallest width on screen of a cell of {@link #clusters}, in pixels.
+         */
+        public Builder cellPixels(int cellPixels) {
+            if (cellPixels <= 0) {
+                throw new IllegalArgumentException("cellPixels must be positive");
+            }
+
+            this.cellPixels = cellPixels;
+            return this;
+        }
+
+        /**
+         * Most cells returned by {@link #clusters}, the ones with the most documents first.
+         */
+        public Builder maxCells(int maxCells) {
+            if (maxCells <= 0) {
+                throw new IllegalArgumentException("maxCells must be positive");
+            }
+
+            this.maxCells = maxCells;
+            return this;
+        }
+
+        /**
+         * Skips the read of the mapping.
+         */
+        public Builder fieldType(FieldType fieldType) {
+            this.fieldType = fieldType;
+            return this;
+        }
+
+        public GeoSearch build() {
+            return new GeoSearch(this);
+        }
+    }
+}
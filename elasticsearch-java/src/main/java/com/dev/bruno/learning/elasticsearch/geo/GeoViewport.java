@@ -0,0 +1,117 @@
+package com.dev.bruno.learning.elasticsearch.geo;
+
+/**
+ * Area of a map shown at a zoom level, in degrees, with the zoom levels of the web map tiles: the world is one tile
+ * of 256 pixels at zoom 0 and every level doubles its width.
+ * <p>
+ * A viewport whose west is greater than its east crosses the antimeridian.
+ */
+public class GeoViewport {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final int MAX_ZOOM = 29;
+    private static final int MAX_GEOHASH_PRECISION = 12;
+
+    private final double west;
+    private final double south;
+    private final double east;
+    private final double north;
+    private final int zoom;
+
+    public GeoViewport(double west, double south, double east, double north, int zoom) {
+        if (west < -180 || west > 180 || east < -180 || east > 180) {
+            throw new IllegalArgumentException("Longitudes must be between -180 and 180");
+        }
+
+        if (south < -90 || north > 90 || south > north) {
+            throw new IllegalArgumentException("Latitudes must be between -90 and 90, south before north");
+        }
+
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("zoom must be between 0 and " + MAX_ZOOM);
+        }
+
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.north = north;
+        this.zoom = zoom;
+    }
+
+    /**
+     * The area of the web map tile x/y at the zoom level, in the Web Mercator projection.
+     */
+    public static GeoViewport ofTile(int zoom, int x, int y) {
+        int tiles = 1 << zoom;
+
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException("Tile " + x + "/" + y + " does not exist at zoom " + zoom);
+        }
+
+        return new GeoViewport(longitude(x, tiles), latitude(y + 1, tiles), longitude(x + 1, tiles), latitude(y, tiles), zoom);
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public boolean crossesAntimeridian() {
+        return west > east;
+    }
+
+    /**
+     * Degrees of longitude covered by a pixel, the smallest detail the map can show.
+     */
+    public double pixelDegrees() {
+        return 360.0 / TILE_SIZE / Math.pow(2, zoom);
+    }
+
+    /**
+     * The finest geohash precision whose cells are still at least {@code cellPixels} wide, so a grid of the
+     * viewport has about as many cells as fit on the screen, whatever the zoom.
+     */
+    public int geohashPrecision(int cellPixels) {
+        double minCellDegrees = cellPixels * pixelDegrees();
+
+        for (int precision = MAX_GEOHASH_PRECISION; precision > 1; precision--) {
+            //A geohash character holds 5 bits, alternately starting with a longitude bit
+            int longitudeBits = (5 * precision + 1) / 2;
+
+            if (360.0 / Math.pow(2, longitudeBits) >= minCellDegrees) {
+                return precision;
+            }
+        }
+
+        return 1;
+    }
+
+    private static double longitude(int x, int tiles) {
+        return x * 360.0 / tiles - 180;
+    }
+
+    private static double latitude(int y, int tiles) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / tiles))));
+    }
+
+    @Override
+    public String toString() {
+        return "[" + west + ", " + south + ", " + east + ", " + north + "] at zoom " + zoom;
+    }
+}
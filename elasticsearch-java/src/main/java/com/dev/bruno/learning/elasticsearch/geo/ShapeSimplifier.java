@@ -0,0 +1,201 @@
+package com.dev.bruno.learning.elasticsearch.geo;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Douglas-Peucker simplification of lines and polygon rings, to send the shape of a query with no more points than
+ * the map can show: a polygon of thousands of points costs as much to parse and to intersect with every matching
+ * shape on every shard, while its details below a pixel change nothing on the tile.
+ */
+public final class ShapeSimplifier {
+
+    private static final int MAX_ATTEMPTS = 8;
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private ShapeSimplifier() {
+    }
+
+    /**
+     * Simplifies a closed ring, keeping at least the 4 points of a valid polygon ring.
+     * <p>
+     * Douglas-Peucker may make a ring cross itself, typically where two parts of it come closer than the tolerance,
+     * and geo_shape rejects self-intersecting polygons. The tolerance is then halved until the simplified ring is
+     * simple, and the ring is returned unchanged when it still is not after {@value #MAX_ATTEMPTS} attempts.
+     */
+    public static List<Coordinate> simplifyRing(List<Coordinate> ring, double tolerance) {
+        if (ring.size() < 4 || !ring.get(0).equals2D(ring.get(ring.size() - 1))) {
+            throw new IllegalArgumentException("A ring needs at least 4 points and must end on its first point");
+        }
+
+        double attemptTolerance = tolerance;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            List<Coordinate> simplified = simplifyRingOnce(ring, attemptTolerance);
+
+            if (simplified.size() == ring.size() || isSimple(simplified)) {
+                return simplified;
+            }
+
+            attemptTolerance /= 2;
+        }
+
+        return ring;
+    }
+
+    private static List<Coordinate> simplifyRingOnce(List<Coordinate> ring, double tolerance) {
+        int last = ring.size() - 1;
+
+        //The first point is also the last one, the ring is simplified as two lines split at its farthest point
+        int farthest = farthestFrom(ring, 0, last);
+        boolean[] keep = new boolean[ring.size()];
+        keep[0] = true;
+        keep[farthest] = true;
+        keep[last] = true;
+
+        mark(ring, 0, farthest, tolerance, keep);
+        mark(ring, farthest, last, tolerance, keep);
+
+        //Both halves were within the tolerance of their chord, a triangle is the least a polygon can be
+        if (count(keep) < 4) {
+            int first = farthestFromSegment(ring, 0, farthest, -1);
+            int second = farthestFromSegment(ring, farthest, last, -1);
+
+            if (first != -1) {
+                keep[first] = true;
+            }
+
+            if (second != -1) {
+                keep[second] = true;
+            }
+        }
+
+        return collect(ring, keep);
+    }
+
+    public static List<Coordinate> simplifyLine(List<Coordinate> line, double tolerance) {
+        if (line.size() <= 2) {
+            return line;
+        }
+
+        boolean[] keep = new boolean[line.size()];
+        keep[0] = true;
+        keep[line.size() - 1] = true;
+
+        mark(line, 0, line.size() - 1, tolerance, keep);
+
+        return collect(line, keep);
+    }
+
+    /**
+     * Keeps, between first and last, every point farther than the tolerance from the simplified line. Iterative, so
+     * a shape of any size does not overflow the stack.
+     */
+    private static void mark(List<Coordinate> points, int first, int last, double tolerance, boolean[] keep) {
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{first, last});
+
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+
+            if (range[1] - range[0] < 2) {
+                continue;
+            }
+
+            int farthest = farthestFromSegment(points, range[0], range[1], tolerance);
+
+            if (farthest != -1) {
+                keep[farthest] = true;
+                ranges.push(new int[]{range[0], farthest});
+                ranges.push(new int[]{farthest, range[1]});
+            }
+        }
+    }
+
+    /**
+     * The point between first and last farthest from the segment joining them, -1 when none is farther than
+     * minDistance.
+     */
+    private static int farthestFromSegment(List<Coordinate> points, int first, int last, double minDistance) {
+        int farthest = -1;
+        double maxDistance = minDistance;
+
+        for (int i = first + 1; i < last; i++) {
+            double distance = distance(points.get(i), points.get(first), points.get(last));
+
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest = i;
+            }
+        }
+
+        return farthest;
+    }
+
+    private static int farthestFrom(List<Coordinate> points, int from, int to) {
+        int farthest = from + 1;
+        double maxDistance = -1;
+
+        for (int i = from + 1; i < to; i++) {
+            double distance = points.get(i).distance(points.get(from));
+
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest = i;
+            }
+        }
+
+        return farthest;
+    }
+
+    /**
+     * Distance in degrees from the point to the segment, good enough at the scale of a pixel.
+     */
+    private static double distance(Coordinate point, Coordinate start, Coordinate end) {
+        double dx = end.x - start.x;
+        double dy = end.y - start.y;
+        double lengthSquared = dx * dx + dy * dy;
+
+        if (lengthSquared == 0) {
+            return point.distance(start);
+        }
+
+        double t = Math.max(0, Math.min(1, ((point.x - start.x) * dx + (point.y - start.y) * dy) / lengthSquared));
+
+        return Math.hypot(point.x - (start.x + t * dx), point.y - (start.y + t * dy));
+    }
+
+    private static boolean isSimple(List<Coordinate> ring) {
+        return GEOMETRY_FACTORY.createLinearRing(ring.toArray(new Coordinate[0])).isSimple();
+    }
+
+    private static int count(boolean[] keep) {
+        int count = 0;
+
+        for (boolean kept : keep) {
+            if (kept) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static List<Coordinate> collect(List<Coordinate> points, boolean[] keep) {
+        List<Coordinate> kept = new ArrayList<>();
+
+        for (int i = 0; i < points.size(); i++) {
+            if (keep[i]) {
+                kept.add(points.get(i));
+            }
+        }
+
+        return kept;
+    }
+}
@@ -0,0 +1,503 @@
+package com.dev.bruno.learning.elasticsearch.geo;
+
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side cache of the documents of a {@link GeoSearch}, for maps that send the same area again and again with
+ * slightly shifted or zoomed viewports.
+ * <p>
+ * Viewports are snapped to the web map tiles of their zoom level and the documents are cached per tile, keyed by
+ * its quadkey. Panning only fetches the tiles that came into view, in a single {@code _msearch}. Zooming in is
+ * served by a cached ancestor tile holding all of its documents, zooming out by the four cached children of a
+ * tile. A result is therefore the documents of the tiles covering the viewport, a superset of the viewport itself
+ * that the renderer clips.
+ * <p>
+ * A tile keeps at most {@code maxHitsPerTile} documents; a tile with more is marked truncated, it is not used for
+ * its descendants and {@link Result#isTruncated()} tells the renderer to draw clusters instead. Tiles are evicted
+ * in LRU order once their estimated size exceeds {@code maxBytes}, and dropped when the index was refreshed since
+ * they were fetched (see {@link IndexVisibility#refreshCount(String...)}), read at most once per
+ * {@code generationCheckInterval}. Writes are only searchable after a refresh, so they do not invalidate the tiles
+ * until then.
+ * <p>
+ * The cached SearchHit instances are shared, callers must not change them.
+ */
+public class TileCache {
+
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    //Object headers, id, type and the bookkeeping of a hit, on top of its source
+    private static final long HIT_OVERHEAD_BYTES = 256;
+
+    private final GeoSearch geoSearch;
+    private final IndexVisibility indexVisibility;
+    private final QueryBuilder filter;
+    private final int maxHitsPerTile;
+    private final int maxTilesPerViewport;
+    private final int maxAncestorLevels;
+    private final long maxBytes;
+    private final long generationCheckNanos;
+
+    private final LinkedHashMap<String, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    //The refresh count of the index, -1 until it was read
+    private long generation = -1;
+    private long generationCheckedAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private TileCache(Builder builder) {
+        this.geoSearch = builder.geoSearch;
+        this.indexVisibility = new IndexVisibility(builder.geoSearch.highLevelClient().getLowLevelClient());
+        this.filter = builder.filter;
+        this.maxHitsPerTile = builder.maxHitsPerTile;
+        this.maxTilesPerViewport = builder.maxTilesPerViewport;
+        this.maxAncestorLevels = builder.maxAncestorLevels;
+        this.maxBytes = builder.maxBytes;
+        this.generationCheckNanos = builder.generationCheckInterval.nanos();
+    }
+
+    public static Builder builder(GeoSearch geoSearch) {
+        return new Builder(geoSearch);
+    }
+
+    public Result search(GeoViewport viewport) throws IOException {
+        List<String> keys = covering(viewport);
+
+        //Taken before searching, a write that lands during the search leaves the tiles one generation behind
+        long current = generation();
+
+        Map<String, SearchHit> documents = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        boolean truncated = false;
+
+        synchronized (tiles) {
+            for (String key : keys) {
+                Collection<Tile> cached = lookup(key, current);
+
+                if (cached == null) {
+                    missing.add(key);
+                    continue;
+                }
+
+                for (Tile tile : cached) {
+                    add(documents, tile.hits);
+                    truncated |= tile.truncated;
+                }
+            }
+        }
+
+        hits.addAndGet(keys.size() - missing.size());
+        misses.addAndGet(missing.size());
+
+        for (Tile tile : fetch(missing, current)) {
+            add(documents, tile.hits);
+            truncated |= tile.truncated;
+        }
+
+        return new Result(new ArrayList<>(documents.values()), keys.size(), missing.size(), truncated);
+    }
+
+    public void invalidateAll() {
+        synchronized (tiles) {
+            tiles.clear();
+            bytes = 0;
+            generation = -1;
+        }
+    }
+
+    public int size() {
+        synchronized (tiles) {
+            return tiles.size();
+        }
+    }
+
+    /**
+     * @return the estimated size of the cached documents
+     */
+    public long bytes() {
+        synchronized (tiles) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The quadkey of the tile x/y at the zoom level: one digit per level, so the key of a tile starts with the keys
+     * of all its ancestors.
+     */
+    public static String quadkey(int zoom, int x, int y) {
+        StringBuilder quadkey = new StringBuilder(zoom);
+
+        for (int level = zoom; level > 0; level--) {
+            int mask = 1 << (level - 1);
+            int digit = ((x & mask) != 0 ? 1 : 0) + ((y & mask) != 0 ? 2 : 0);
+
+            quadkey.append(digit);
+        }
+
+        return quadkey.toString();
+    }
+
+    /**
+     * The quadkeys of the tiles covering the viewport, at its zoom or the highest one that needs no more than
+     * {@code maxTilesPerViewport} tiles.
+     */
+    private List<String> covering(GeoViewport viewport) {
+        double north = Math.min(viewport.getNorth(), MAX_LATITUDE);
+        double south = Math.max(viewport.getSouth(), -MAX_LATITUDE);
+
+        for (int zoom = viewport.getZoom(); ; zoom--) {
+            int tiles = 1 << zoom;
+            int west = tileX(viewport.getWest(), tiles);
+            int east = tileX(viewport.getEast(), tiles);
+            int top = tileY(north, tiles);
+            int bottom = tileY(south, tiles);
+
+            int columns = viewport.crossesAntimeridian() ? tiles - west + east + 1 : east - west + 1;
+            int rows = bottom - top + 1;
+
+            if ((long) columns * rows > maxTilesPerViewport && zoom > 0) {
+                continue;
+            }
+
+            List<String> keys = new ArrayList<>(columns * rows);
+
+            for (int column = 0; column < Math.min(columns, tiles); column++) {
+                int x = (west + column) % tiles;
+
+                for (int y = top; y <= bottom; y++) {
+                    keys.add(quadkey(zoom, x, y));
+                }
+            }
+
+            return keys;
+        }
+    }
+
+    /**
+     * The cached tiles holding every document of the tile, null when they must be fetched.
+     */
+    private Collection<Tile> lookup(String key, long current) {
+        Tile tile = valid(key, current);
+
+        if (tile != null) {
+            return Collections.singletonList(tile);
+        }
+
+        //Zooming in, an ancestor with all of its documents has all the documents of the tile
+        for (int level = 1; level <= maxAncestorLevels && level <= key.length(); level++) {
+            Tile ancestor = valid(key.substring(0, key.length() - level), current);
+
+            if (ancestor != null && !ancestor.truncated) {
+                return Collections.singletonList(ancestor);
+            }
+        }
+
+        //Zooming out, the four children together cover the tile
+        List<Tile> children = new ArrayList<>(4);
+
+        for (char digit = '0'; digit <= '3'; digit++) {
+            Tile child = valid(key + digit, current);
+
+            if (child == null) {
+                return null;
+            }
+
+            children.add(child);
+        }
+
+        return children;
+    }
+
+    private Tile valid(String key, long current) {
+        Tile tile = tiles.get(key);
+
+        if (tile != null && tile.generation != current) {
+            remove(key);
+            return null;
+        }
+
+        return tile;
+    }
+
+    private List<Tile> fetch(List<String> keys, long current) throws IOException {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        MultiSearchRequest request = new MultiSearchRequest();
+
+        for (String key : keys) {
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(geoSearch.filtered(viewport(key), filter))
+                .size(maxHitsPerTile);
+
+            request.add(new SearchRequest(geoSearch.index()).source(source));
+        }
+
+        MultiSearchResponse response = geoSearch.highLevelClient().multiSearch(request);
+        List<Tile> fetched = new ArrayList<>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            MultiSearchResponse.Item item = response.getResponses()[i];
+
+            if (item.isFailure()) {
+                throw new IOException("Search of tile " + keys.get(i) + " failed", item.getFailure());
+            }
+
+            SearchResponse searchResponse = item.getResponse();
+            SearchHit[] tileHits = searchResponse.getHits().getHits();
+            boolean truncated = searchResponse.getHits().getTotalHits() > tileHits.length;
+
+            fetched.add(new Tile(Arrays.asList(tileHits), truncated, current));
+        }
+
+        synchronized (tiles) {
+            for (int i = 0; i < keys.size(); i++) {
+                put(keys.get(i), fetched.get(i));
+            }
+        }
+
+        return fetched;
+    }
+
+    private void put(String key, Tile tile) {
+        remove(key);
+
+        tiles.put(key, tile);
+        bytes += tile.bytes;
+
+        //Access ordered, the first tiles are the least recently used ones
+        while (bytes > maxBytes && tiles.size() > 1) {
+            remove(tiles.keySet().iterator().next());
+        }
+    }
+
+    private void remove(String key) {
+        Tile removed = tiles.remove(key);
+
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    private long generation() throws IOException {
+        long now = System.nanoTime();
+
+        synchronized (tiles) {
+            if (generation != -1 && now - generationCheckedAt < generationCheckNanos) {
+                return generation;
+            }
+        }
+
+        long value = indexVisibility.refreshCount(geoSearch.index());
+
+        synchronized (tiles) {
+            generation = value;
+            generationCheckedAt = now;
+        }
+
+        return value;
+    }
+
+    private static void add(Map<String, SearchHit> documents, List<SearchHit> hits) {
+        //Shapes on the border of several tiles are in each of them
+        for (SearchHit hit : hits) {
+            documents.putIfAbsent(hit.getIndex() + "/" + hit.getType() + "/" + hit.getId(), hit);
+        }
+    }
+
+    private static GeoViewport viewport(String quadkey) {
+        int x = 0;
+        int y = 0;
+
+        for (int i = 0; i < quadkey.length(); i++) {
+            int digit = quadkey.charAt(i) - '0';
+
+            x = (x << 1) | (digit & 1);
+            y = (y << 1) | (digit >> 1);
+        }
+
+        return GeoViewport.ofTile(quadkey.length(), x, y);
+    }
+
+    private static int tileX(double longitude, int tiles) {
+        return Math.min(tiles - 1, (int) Math.floor((longitude + 180) / 360 * tiles));
+    }
+
+    private static int tileY(double latitude, int tiles) {
+        double radians = Math.toRadians(latitude);
+        double y = (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(y * tiles)));
+    }
+
+    private static class Tile {
+
+        private final List<SearchHit> hits;
+        private final boolean truncated;
+        private final long generation;
+        private final long bytes;
+
+        Tile(List<SearchHit> hits, boolean truncated, long generation) {
+            this.hits = hits;
+            this.truncated = truncated;
+            this.generation = generation;
+
+            long size = 0;
+            for (SearchHit hit : hits) {
+                size += HIT_OVERHEAD_BYTES + (hit.getSourceRef() == null ? 0 : hit.getSourceRef().length());
+            }
+
+            this.bytes = size;
+        }
+    }
+
+    public static class Result {
+
+        private final List<SearchHit> hits;
+        private final int tiles;
+        private final int fetchedTiles;
+        private final boolean truncated;
+
+        Result(List<SearchHit> hits, int tiles, int fetchedTiles, boolean truncated) {
+            this.hits = hits;
+            this.tiles = tiles;
+            this.fetchedTiles = fetchedTiles;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @return the documents of the tiles covering the viewport, each one once
+         */
+        public List<SearchHit> getHits() {
+            return hits;
+        }
+
+        public int getTiles() {
+            return tiles;
+        }
+
+        /**
+         * @return the tiles that were not cached and had to be searched
+         */
+        public int getFetchedTiles() {
+            return fetchedTiles;
+        }
+
+        /**
+         * @return true when a tile had more than {@code maxHitsPerTile} documents, the hits are then incomplete
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    public static class Builder {
+
+        private final GeoSearch geoSearch;
+        private QueryBuilder filter;
+        private int maxHitsPerTile = 500;
+        private int maxTilesPerViewport = 64;
+        private int maxAncestorLevels = 3;
+        private long maxBytes = 64 * 1024 * 1024;
+        private TimeValue generationCheckInterval = TimeValue.timeValueSeconds(1);
+
+        private Builder(GeoSearch geoSearch) {
+            this.geoSearch = geoSearch;
+        }
+
+        /**
+         * Restricts the cached documents, the same for every viewport.
+         */
+        public Builder filter(QueryBuilder filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        public Builder maxHitsPerTile(int maxHitsPerTile) {
+            if (maxHitsPerTile <= 0) {
+                throw new IllegalArgumentException("maxHitsPerTile must be positive");
+            }
+
+            this.maxHitsPerTile = maxHitsPerTile;
+            return this;
+        }
+
+        /**
+         * Viewports needing more tiles at their zoom are snapped to the tiles of a lower zoom.
+         */
+        public Builder maxTilesPerViewport(int maxTilesPerViewport) {
+            if (maxTilesPerViewport <= 0) {
+                throw new IllegalArgumentException("maxTilesPerViewport must be positive");
+            }
+
+            this.maxTilesPerViewport = maxTilesPerViewport;
+            return this;
+        }
+
+        /**
+         * How many zoom levels up a cached tile can serve its descendants, 0 to never use an ancestor.
+         */
+        public Builder maxAncestorLevels(int maxAncestorLevels) {
+            if (maxAncestorLevels < 0) {
+                throw new IllegalArgumentException("maxAncestorLevels must not be negative");
+            }
+
+            this.maxAncestorLevels = maxAncestorLevels;
+            return this;
+        }
+
+        /**
+         * Estimated size of the cached documents above which the least recently used tiles are evicted.
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * How long a refresh count read from _stats is trusted. Zero checks it before every search, which still saves
+         * the searches of the tiles but not the round trip.
+         */
+        public Builder generationCheckInterval(TimeValue generationCheckInterval) {
+            this.generationCheckInterval = generationCheckInterval;
+            return this;
+        }
+
+        public TileCache build() {
+            return new TileCache(this);
+        }
+    }
+}
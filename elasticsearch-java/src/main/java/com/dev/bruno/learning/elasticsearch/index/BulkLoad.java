@@ -0,0 +1,225 @@
+package com.dev.bruno.learning.elasticsearch.index;
+
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads indices with the settings of an initial load instead of the live ones: no scheduled refresh, no replica and,
+ * optionally, a translog fsynced in the background instead of on every request.
+ * <p>
+ * {@link #run(Load)} switches the indices to those settings, runs the load and restores the previous settings even
+ * when the load fails. After a successful load, and while there is still no replica, the indices are refreshed,
+ * optionally force merged, and flushed. The previous settings are restored afterwards, so the replicas copy the
+ * final segments of the primaries once, and the call returns when the indices are green again.
+ * <p>
+ * Writes with {@code refresh=wait_for} never return while the refresh is off, the load must not use them: the
+ * refresh at the end makes the documents searchable. The force merge is answered only once done, so the client
+ * needs a socket timeout long enough for it.
+ */
+public class BulkLoad {
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String TRANSLOG_DURABILITY = "index.translog.durability";
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+
+    private static final JsonFieldReader INDICES_READER = JsonFieldReader.of("*");
+    private static final JsonFieldReader SETTINGS_READER = JsonFieldReader.of(
+        "settings." + REFRESH_INTERVAL, "settings." + NUMBER_OF_REPLICAS, "settings." + TRANSLOG_DURABILITY);
+    private static final JsonFieldReader HEALTH_READER = JsonFieldReader.of("timed_out", "status");
+
+    private final RestClient lowLevelClient;
+    private final String indices;
+    private final boolean asyncTranslog;
+    private final int maxSegments;
+    private final long greenTimeoutMillis;
+
+    private BulkLoad(Builder builder) {
+        this.lowLevelClient = builder.lowLevelClient;
+        this.indices = String.join(",", builder.indices);
+        this.asyncTranslog = builder.asyncTranslog;
+        this.maxSegments = builder.maxSegments;
+        this.greenTimeoutMillis = builder.greenTimeoutMillis;
+    }
+
+    public static Builder builder(RestClient lowLevelClient, String... indices) {
+        return new Builder(lowLevelClient, indices);
+    }
+
+    public <T> T run(Load<T> load) throws IOException {
+        Map<String, Map<String, Object>> live = liveSettings();
+
+        Map<String, Object> loadSettings = new LinkedHashMap<>();
+        loadSettings.put(REFRESH_INTERVAL, "-1");
+        loadSettings.put(NUMBER_OF_REPLICAS, 0);
+
+        if (asyncTranslog) {
+            loadSettings.put(TRANSLOG_DURABILITY, "async");
+        }
+
+        T result;
+
+        try {
+            putSettings(indices, loadSettings);
+            result = load.load();
+
+            new IndexVisibility(lowLevelClient).refresh(indices);
+
+            if (maxSegments > 0) {
+                Map<String, String> params = Collections.singletonMap("max_num_segments", Integer.toString(maxSegments));
+                lowLevelClient.performRequest("POST", "/" + indices + "/_forcemerge", params);
+            }
+
+            //Commits the merged segments and the operations of an async translog before replicas copy them
+            lowLevelClient.performRequest("POST", "/" + indices + "/_flush");
+        } catch (IOException | RuntimeException e) {
+            try {
+                restore(live);
+            } catch (IOException | RuntimeException restoreFailure) {
+                e.addSuppressed(restoreFailure);
+            }
+
+            throw e;
+        }
+
+        restore(live);
+        awaitGreen();
+
+        return result;
+    }
+
+    /**
+     * The settings of every index that the load changes, null when the index uses the default.
+     */
+    private Map<String, Map<String, Object>> liveSettings() throws IOException {
+        String names = String.join(",", REFRESH_INTERVAL, NUMBER_OF_REPLICAS, TRANSLOG_DURABILITY);
+
+        //Index names may hold dots, so every index is read as its JSON and its settings from that JSON
+        Response response = lowLevelClient.performRequest("GET", "/" + indices + "/_settings/" + names);
+        Map<String, String> body = INDICES_READER.read(response.getEntity().getContent()).asMap();
+
+        Map<String, Map<String, Object>> live = new LinkedHashMap<>();
+
+        for (Map.Entry<String, String> index : body.entrySet()) {
+            JsonFields settings = SETTINGS_READER.read(new ByteArrayInputStream(index.getValue().getBytes(StandardCharsets.UTF_8)));
+            Map<String, Object> changed = new LinkedHashMap<>();
+
+            changed.put(REFRESH_INTERVAL, setting(settings, REFRESH_INTERVAL));
+            changed.put(NUMBER_OF_REPLICAS, setting(settings, NUMBER_OF_REPLICAS));
+
+            if (asyncTranslog) {
+                changed.put(TRANSLOG_DURABILITY, setting(settings, TRANSLOG_DURABILITY));
+            }
+
+            live.put(index.getKey(), changed);
+        }
+
+        return live;
+    }
+
+    private static String setting(JsonFields settings, String name) {
+        String path = "settings." + name;
+
+        return settings.contains(path) ? settings.getString(path) : null;
+    }
+
+    private void restore(Map<String, Map<String, Object>> live) throws IOException {
+        for (Map.Entry<String, Map<String, Object>> index : live.entrySet()) {
+            putSettings(index.getKey(), index.getValue());
+        }
+    }
+
+    private void putSettings(String index, Map<String, Object> settings) throws IOException {
+        //A null value resets the setting to its default
+        NStringEntity entity = new NStringEntity(GSON.toJson(settings), ContentType.APPLICATION_JSON);
+
+        lowLevelClient.performRequest("PUT", "/" + index + "/_settings", Collections.emptyMap(), entity);
+    }
+
+    private void awaitGreen() throws IOException {
+        Map<String, String> params = new HashMap<>();
+        params.put("wait_for_status", "green");
+        params.put("timeout", greenTimeoutMillis + "ms");
+        //A timeout is answered with 408, the body says which status the indices reached
+        params.put("ignore", "408");
+
+        Response response = lowLevelClient.performRequest("GET", "/_cluster/health/" + indices, params);
+        JsonFields health = HEALTH_READER.read(response.getEntity().getContent());
+
+        if (health.getBoolean("timed_out")) {
+            throw new IOException(indices + " still " + health.getString("status") + " after " + greenTimeoutMillis + "ms");
+        }
+    }
+
+    public interface Load<T> {
+        T load() throws IOException;
+    }
+
+    public static class Builder {
+
+        private final RestClient lowLevelClient;
+        private final String[] indices;
+        private boolean asyncTranslog;
+        private int maxSegments;
+        private long greenTimeoutMillis = 60_000;
+
+        private Builder(RestClient lowLevelClient, String... indices) {
+            if (indices.length == 0) {
+                throw new IllegalArgumentException("At least one index is required");
+            }
+
+            this.lowLevelClient = lowLevelClient;
+            this.indices = indices;
+        }
+
+        /**
+         * Fsyncs the translog every few seconds instead of on every request during the load. A node that crashes
+         * loses the last seconds of the load, which is then run again.
+         */
+        public Builder asyncTranslog(boolean asyncTranslog) {
+            this.asyncTranslog = asyncTranslog;
+            return this;
+        }
+
+        /**
+         * Force merges the indices down to this number of segments per shard once loaded, 0 to leave the merges
+         * to the merge policy. Only for indices that are not written much afterwards.
+         */
+        public Builder maxSegments(int maxSegments) {
+            if (maxSegments < 0) {
+                throw new IllegalArgumentException("maxSegments must not be negative");
+            }
+
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        public Builder greenTimeoutMillis(long greenTimeoutMillis) {
+            if (greenTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("greenTimeoutMillis must be positive");
+            }
+
+            this.greenTimeoutMillis = greenTimeoutMillis;
+            return this;
+        }
+
+        public BulkLoad build() {
+            return new BulkLoad(this);
+        }
+    }
+}
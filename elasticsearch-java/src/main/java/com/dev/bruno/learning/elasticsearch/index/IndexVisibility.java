@@ -0,0 +1,132 @@
+package com.dev.bruno.learning.elasticsearch.index;
+
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes indexed documents searchable without guessing a delay.
+ * <p>
+ * Prefer {@code refresh=wait_for} on the write itself (IndexRequest#setRefreshPolicy), or
+ * BulkIngester.Builder#refreshOnCompletion for a bulk load. When the writer is not under our control, {@link #refresh(String...)}
+ * forces a refresh, and {@link #awaitRefresh(long, long, TimeUnit, String...)} waits for the next scheduled one
+ * by polling the refresh counters of _stats.
+ */
+public class IndexVisibility {
+
+    private static final long MAX_POLL_INTERVAL_MILLIS = 100;
+
+    private static final String REFRESH_TOTAL = "_all.primaries.refresh.total";
+    private static final String INDEX_TOTAL = "_all.primaries.indexing.index_total";
+    private static final String DELETE_TOTAL = "_all.primaries.indexing.delete_total";
+    private static final String SHARDS_FAILED = "_shards.failed";
+
+    private static final Map<String, String> GENERATION_PARAMS = Collections.singletonMap("filter_path", String.join(",", REFRESH_TOTAL, INDEX_TOTAL, DELETE_TOTAL));
+    private static final JsonFieldReader GENERATION_READER = JsonFieldReader.of(REFRESH_TOTAL, INDEX_TOTAL, DELETE_TOTAL);
+    private static final JsonFieldReader REFRESH_COUNT_READER = JsonFieldReader.of(REFRESH_TOTAL);
+    private static final JsonFieldReader REFRESH_READER = JsonFieldReader.of(SHARDS_FAILED);
+
+    private final RestClient lowLevelClient;
+
+    public IndexVisibility(RestClient lowLevelClient) {
+        this.lowLevelClient = lowLevelClient;
+    }
+
+    /**
+     * Refreshes the indices and returns once every shard opened a new searcher.
+     */
+    public void refresh(String... indices) throws IOException {
+        checkRefresh(lowLevelClient.performRequest("POST", "/" + String.join(",", indices) + "/_refresh"), indices);
+    }
+
+    /**
+     * {@link #refresh(String...)} without blocking, for callers running on the threads of the client.
+     */
+    public void refreshAsync(ActionListener<Void> listener, String... indices) {
+        lowLevelClient.performRequestAsync("POST", "/" + String.join(",", indices) + "/_refresh", new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try {
+                    checkRefresh(response, indices);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+
+                listener.onResponse(null);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                listener.onFailure(exception);
+            }
+        });
+    }
+
+    /**
+     * Total number of refreshes executed on the primaries of the indices.
+     */
+    public long refreshCount(String... indices) throws IOException {
+        Map<String, String> params = Collections.singletonMap("filter_path", REFRESH_TOTAL);
+
+        Response response = lowLevelClient.performRequest("GET", "/" + String.join(",", indices) + "/_stats/refresh", params);
+
+        return REFRESH_COUNT_READER.read(response.getEntity().getContent()).getLong(REFRESH_TOTAL);
+    }
+
+    /**
+     * Token that changes whenever the primaries of the indices accept a write or refresh, so a value read from the
+     * indices is stale once the token differs from the one taken before reading it.
+     */
+    public String generation(String... indices) throws IOException {
+        Response response = lowLevelClient.performRequest("GET", "/" + String.join(",", indices) + "/_stats/refresh,indexing", GENERATION_PARAMS);
+        JsonFields fields = GENERATION_READER.read(response.getEntity().getContent());
+
+        return fields.getString(REFRESH_TOTAL) + ":" + fields.getString(INDEX_TOTAL) + ":" + fields.getString(DELETE_TOTAL);
+    }
+
+    /**
+     * Waits until the indices were refreshed at least once after {@code since}, a value taken from
+     * {@link #refreshCount(String...)} before writing.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitRefresh(long since, long timeout, TimeUnit unit, String... indices) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long interval = 1;
+
+        while (refreshCount(indices) <= since) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a refresh");
+            }
+
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS);
+        }
+
+        return true;
+    }
+
+    private static void checkRefresh(Response response, String... indices) throws IOException {
+        JsonFields fields = REFRESH_READER.read(response.getEntity().getContent());
+
+        if (fields.contains(SHARDS_FAILED) && fields.getLong(SHARDS_FAILED) > 0) {
+            throw new IOException("Refresh failed on " + fields.getLong(SHARDS_FAILED) + " shard(s) of " + String.join(",", indices));
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package com.dev.bruno.learning.elasticsearch.index;
+
+import com.dev.bruno.learning.elasticsearch.bulk.BulkPipeline;
+import com.dev.bruno.learning.elasticsearch.client.BinaryClient;
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import com.dev.bruno.learning.elasticsearch.search.SlicedScan;
+import com.google.gson.Gson;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Moves an alias to a new version of its index, created with new settings and mappings, while the applications
+ * keep reading and writing through the alias.
+ * <p>
+ * The new index is named after the alias with the next version suffix ({@code customer_v1}, {@code customer_v2},
+ * ...) and loaded as a {@link BulkLoad}. The documents are copied by a sliced {@code _reindex} on the cluster, or by
+ * a {@link SlicedScan} of the previous index sent through a {@link BulkPipeline} when the cluster has no reindex
+ * module. Both are throttled to {@code requestsPerSecond} documents per second and keep the versions of the
+ * documents, so a copy never overwrites a newer write and can be repeated.
+ * <p>
+ * With a {@code changedSinceField}, a date set by the applications on every write, the documents written during
+ * the copy are copied again in catch-up passes until a pass finds at most {@code catchUpThreshold} of them. Writes
+ * to the previous index are then blocked ({@code index.blocks.write}) for a last pass, and the alias is swapped in
+ * a single {@code _aliases} request: no write reaches the previous index once its last documents are copied, so the
+ * writes sent through the alias after the swap are never overwritten. The applications get a
+ * {@code cluster_block_exception} for the writes sent during that last pass, the catch-up passes keep it short.
+ * Deletes made during the reindex are not replayed.
+ * <p>
+ * When the alias is still a concrete index, as an index created before the first reindex, the swap deletes that
+ * index in the same request, as the alias can only exist once the index of the same name is gone, so it has to be
+ * allowed with {@code deletePrevious}. Its last pass runs even without a {@code changedSinceField}, and then copies
+ * every document again.
+ * <p>
+ * Otherwise, without a {@code changedSinceField}, the writes made during the copy stay in the previous index only.
+ * A previous index that is kept gets its writes back once the alias moved.
+ */
+public class Reindexer {
+
+    private static final Pattern VERSION = Pattern.compile("(.*)_v(\\d+)");
+
+    private static final long MAX_POLL_INTERVAL_MILLIS = 5000;
+
+    private static final String SHARDS = "*.settings.index.number_of_shards";
+
+    private static final JsonFieldReader INDICES_READER = JsonFieldReader.of("*");
+    private static final JsonFieldReader TASK_READER = JsonFieldReader.of("task");
+    private static final JsonFieldReader TASK_STATUS_READER = JsonFieldReader.of(
+        "completed", "error", "response.failures.*", "response.created", "response.updated");
+    private static final JsonFieldReader SHARDS_READER = JsonFieldReader.of(SHARDS);
+
+    private final RestHighLevelClient highLevelClient;
+    private final RestClient lowLevelClient;
+    private final String alias;
+    private final String indexBody;
+    private final Mode mode;
+    private final int slices;
+    private final float requestsPerSecond;
+    private final String changedSinceField;
+    private final long catchUpMarginMillis;
+    private final long catchUpThreshold;
+    private final int maxCatchUpPasses;
+    private final boolean deletePrevious;
+    private final XContentType sourceType;
+
+    private Reindexer(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.lowLevelClient = builder.highLevelClient.getLowLevelClient();
+        this.alias = builder.alias;
+        this.indexBody = builder.indexBody;
+        this.mode = builder.mode;
+        this.slices = builder.slices;
+        this.requestsPerSecond = builder.requestsPerSecond;
+        this.changedSinceField = builder.changedSinceField;
+        this.catchUpMarginMillis = builder.catchUpMarginMillis;
+        this.catchUpThreshold = builder.catchUpThreshold;
+        this.maxCatchUpPasses = builder.maxCatchUpPasses;
+        this.deletePrevious = builder.deletePrevious;
+        //The hits of a response keep their source in the format of the response
+        this.sourceType = highLevelClient instanceof BinaryClient ? ((BinaryClient) highLevelClient).xContentType() : XContentType.JSON;
+    }
+
+    /**
+     * @param alias      the alias the applications use, or the name of the index they use until the first reindex
+     * @param indexBody  settings and mappings of the new index, as the body of a create index request
+     */
+    public static Builder builder(RestHighLevelClient highLevelClient, String alias, String indexBody) {
+        return new Builder(highLevelClient, alias, indexBody);
+    }
+
+    public enum Mode {
+        /**
+         * Sliced {@code _reindex} run as a task of the cluster, needs the reindex module.
+         */
+        SERVER,
+        /**
+         * Sliced scroll and bulk requests sent by this client.
+         */
+        CLIENT
+    }
+
+    public Result reindex() throws IOException {
+        String previous = currentIndex();
+        boolean concrete = previous.equals(alias);
+        String index = nextIndex(previous);
+
+        if (concrete && !deletePrevious) {
+            throw new IllegalStateException(alias + " is an index, it is deleted when the alias is created, see deletePrevious");
+        }
+
+        NStringEntity entity = new NStringEntity(indexBody, ContentType.APPLICATION_JSON);
+        lowLevelClient.performRequest("PUT", "/" + index, Collections.emptyMap(), entity);
+
+        Result result = new Result(previous, index);
+
+        long since = System.currentTimeMillis();
+        result.copied = BulkLoad.builder(lowLevelClient, index).build().run(() -> copy(previous, index, null));
+
+        if (changedSinceField != null) {
+            long copied;
+
+            do {
+                long passStart = System.currentTimeMillis();
+                copied = copy(previous, index, since - catchUpMarginMillis);
+
+                result.caughtUp += copied;
+                result.passes++;
+                since = passStart;
+            } while (copied > catchUpThreshold && result.passes < maxCatchUpPasses);
+        }
+
+        //Without a changedSinceField there is nothing to catch up with, except for a concrete index: the swap deletes it
+        boolean lastPass = concrete || changedSinceField != null;
+
+        if (lastPass) {
+            blockWrites(previous, true);
+        }
+
+        try {
+            if (lastPass) {
+                lastPass(previous, index, since, result);
+            }
+
+            swap(previous, index, concrete);
+        } catch (IOException | RuntimeException e) {
+            if (lastPass) {
+                try {
+                    blockWrites(previous, false);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+
+            throw e;
+        }
+
+        if (concrete) {
+            return result;
+        }
+
+        if (deletePrevious) {
+            lowLevelClient.performRequest("DELETE", "/" + previous);
+        } else if (lastPass) {
+            blockWrites(previous, false);
+        }
+
+        return result;
+    }
+
+    /**
+     * Copies, while the writes to the previous index are blocked, the documents written since the last pass, all of
+     * them without a changedSinceField. Once it is done no write can reach the previous index before the swap, so a
+     * write through the alias after the swap is never overwritten by a copy.
+     */
+    private void lastPass(String previous, String index, long since, Result result) throws IOException {
+        new IndexVisibility(lowLevelClient).refresh(previous);
+
+        result.caughtUp += copy(previous, index, changedSinceField == null ? null : since - catchUpMarginMillis);
+        result.passes++;
+    }
+
+    private void blockWrites(String index, boolean block) throws IOException {
+        String body = "{\"index.blocks.write\": " + (block ? "true" : "null") + "}";
+
+        lowLevelClient.performRequest("PUT", "/" + index + "/_settings", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    private String currentIndex() throws IOException {
+        try {
+            //index -> aliases, only the names of the indices are used
+            Map<String, String> indices = INDICES_READER.read(lowLevelClient.performRequest("GET", "/_alias/" + alias).getEntity().getContent()).asMap();
+
+            if (indices.size() != 1) {
+                throw new IOException("Alias " + alias + " points to " + indices.size() + " indices, expected one");
+            }
+
+            return indices.keySet().iterator().next();
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != RestStatus.NOT_FOUND.getStatus()) {
+                throw e;
+            }
+        }
+
+        //Not an alias yet, the index itself
+        Response response = lowLevelClient.performRequest("HEAD", "/" + alias);
+
+        if (response.getStatusLine().getStatusCode() != RestStatus.OK.getStatus()) {
+            throw new IOException("No alias nor index named " + alias);
+        }
+
+        return alias;
+    }
+
+    private String nextIndex(String previous) {
+        Matcher matcher = VERSION.matcher(previous);
+
+        if (matcher.matches() && matcher.group(1).equals(alias)) {
+            return alias + "_v" + (Long.parseLong(matcher.group(2)) + 1);
+        }
+
+        return alias + "_v1";
+    }
+
+    private long copy(String source, String dest, Long since) throws IOException {
+        QueryBuilder query = since == null
+            ? QueryBuilders.matchAllQuery()
+            : QueryBuilders.rangeQuery(changedSinceField).gte(since).format("epoch_millis");
+
+        return mode == Mode.SERVER ? serverCopy(source, dest, query) : clientCopy(source, dest, query);
+    }
+
+    private long serverCopy(String source, String dest, QueryBuilder query) throws IOException {
+        XContentBuilder body = XContentFactory.jsonBuilder()
+            .startObject()
+            //An older version than the one already copied is not a failure
+            .field("conflicts", "proceed")
+            .startObject("source")
+            .field("index", source)
+            .field("query", query)
+            .endObject()
+            .startObject("dest")
+            .field("index", dest)
+            .field("version_type", "external")
+            .endObject()
+            .endObject();
+
+        Map<String, String> params = new HashMap<>();
+        params.put("slices", slices == 0 ? "auto" : Integer.toString(slices));
+        params.put("wait_for_completion", "false");
+
+        if (requestsPerSecond > 0) {
+            params.put("requests_per_second", Float.toString(requestsPerSecond));
+        }
+
+        NStringEntity entity = new NStringEntity(body.string(), ContentType.APPLICATION_JSON);
+        Response response = lowLevelClient.performRequest("POST", "/_reindex", params, entity);
+        String task = TASK_READER.read(response.getEntity().getContent()).getString("task");
+
+        JsonFields status = awaitTask(task);
+
+        if (status.contains("error")) {
+            throw new IOException("Reindex of " + source + " failed: " + status.getString("error"));
+        }
+
+        List<String> failures = status.getAll("response.failures.*");
+
+        if (!failures.isEmpty()) {
+            throw new IOException("Reindex of " + source + " failed for " + failures.size() + " document(s), first: " + failures.get(0));
+        }
+
+        return status.getLong("response.created") + status.getLong("response.updated");
+    }
+
+    private JsonFields awaitTask(String task) throws IOException {
+        long interval = 100;
+
+        while (true) {
+            JsonFields status = TASK_STATUS_READER.read(lowLevelClient.performRequest("GET", "/_tasks/" + task).getEntity().getContent());
+
+            if (status.getBoolean("completed")) {
+                return status;
+            }
+
+            sleep(interval);
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    private long clientCopy(String source, String dest, QueryBuilder query) throws IOException {
+        SearchRequest request = new SearchRequest(source)
+            .source(new SearchSourceBuilder().query(query).version(true));
+
+        AtomicLong copied = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        BulkPipeline pipeline = BulkPipeline.builder(highLevelClient, new BulkPipeline.Listener() {
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                for (BulkItemResponse item : response.getItems()) {
+                    //An older version than the one already copied is not a failure
+                    if (!item.isFailed()) {
+                        copied.incrementAndGet();
+                    } else if (item.status() != RestStatus.CONFLICT) {
+                        failure.compareAndSet(null, item.getFailure().getCause());
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Exception e) {
+                failure.compareAndSet(null, e);
+            }
+        }).concurrentRequests(clientSlices(source)).build();
+
+        long start = System.nanoTime();
+        long sent = 0;
+
+        try (Stream<SearchHit> hits = SlicedScan.builder(highLevelClient, request).slices(clientSlices(source)).build().stream()) {
+            Iterator<SearchHit> iterator = hits.iterator();
+
+            while (iterator.hasNext() && failure.get() == null) {
+                pipeline.add(indexRequest(dest, iterator.next()));
+                throttle(start, ++sent);
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Copy of " + source + " to " + dest + " failed", failure.get());
+        }
+
+        return copied.get();
+    }
+
+    private IndexRequest indexRequest(String dest, SearchHit hit) throws IOException {
+        if (!hit.hasSource()) {
+            throw new IOException("Document " + hit.getId() + " of " + hit.getIndex() + " has no source to copy");
+        }
+
+        IndexRequest request = new IndexRequest(dest, hit.getType(), hit.getId())
+            .source(hit.getSourceRef(), sourceType);
+
+        DocumentField routing = hit.field("_routing");
+        if (routing != null) {
+            request.routing(routing.getValue());
+        }
+
+        if (hit.getVersion() > 0) {
+            request.version(hit.getVersion()).versionType(VersionType.EXTERNAL);
+        }
+
+        return request;
+    }
+
+    /**
+     * Same throttle as the one of _reindex, in documents per second over the whole copy.
+     */
+    private void throttle(long start, long sent) throws InterruptedIOException {
+        if (requestsPerSecond <= 0) {
+            return;
+        }
+
+        long due = start + (long) (sent * TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        long ahead = TimeUnit.NANOSECONDS.toMillis(due - System.nanoTime());
+
+        if (ahead > 0) {
+            sleep(ahead);
+        }
+    }
+
+    /**
+     * One slice per shard of the source, as _reindex does with slices=auto.
+     */
+    private int clientSlices(String source) throws IOException {
+        if (slices > 0) {
+            return Math.max(2, slices);
+        }
+
+        //Nested settings, the reader splits its paths on the dots of flat ones; read as values since index names may hold dots
+        Response response = lowLevelClient.performRequest("GET", "/" + source + "/_settings/index.number_of_shards");
+
+        return Math.max(2, SHARDS_READER.read(response.getEntity().getContent()).asMap().values().stream().mapToInt(Integer::parseInt).sum());
+    }
+
+    private void swap(String previous, String index, boolean concrete) throws IOException {
+        List<Object> actions = new ArrayList<>();
+
+        if (concrete) {
+            actions.add(Collections.singletonMap("remove_index", Collections.singletonMap("index", previous)));
+        } else {
+            Map<String, String> remove = new LinkedHashMap<>();
+            remove.put("index", previous);
+            remove.put("alias", alias);
+
+            actions.add(Collections.singletonMap("remove", remove));
+        }
+
+        Map<String, String> add = new LinkedHashMap<>();
+        add.put("index", index);
+        add.put("alias", alias);
+
+        actions.add(Collections.singletonMap("add", add));
+
+        String body = new Gson().toJson(Collections.singletonMap("actions", actions));
+        lowLevelClient.performRequest("POST", "/_aliases", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reindexing");
+        }
+    }
+
+    public static class Result {
+
+        private final String previousIndex;
+        private final String index;
+        private long copied;
+        private long caughtUp;
+        private int passes;
+
+        private Result(String previousIndex, String index) {
+            this.previousIndex = previousIndex;
+            this.index = index;
+        }
+
+        public String getPreviousIndex() {
+            return previousIndex;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the documents copied by the first pass
+         */
+        public long getCopied() {
+            return copied;
+        }
+
+        /**
+         * @return the documents copied again by the catch-up passes
+         */
+        public long getCaughtUp() {
+            return caughtUp;
+        }
+
+        public int getPasses() {
+            return passes;
+        }
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private final String alias;
+        private final String indexBody;
+        private Mode mode = Mode.SERVER;
+        private int slices;
+        private float requestsPerSecond = -1;
+        private String changedSinceField;
+        private long catchUpMarginMillis = 60_000;
+        private long catchUpThreshold = 1000;
+        private int maxCatchUpPasses = 5;
+        private boolean deletePrevious;
+
+        private Builder(RestHighLevelClient highLevelClient, String alias, String indexBody) {
+            this.highLevelClient = highLevelClient;
+            this.alias = alias;
+            this.indexBody = indexBody;
+        }
+
+        public Builder mode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Number of slices of the copy, 0 for one per shard of the previous index.
+         */
+        public Builder slices(int slices) {
+            if (slices < 0) {
+                throw new IllegalArgumentException("slices must not be negative");
+            }
+
+            this.slices = slices;
+            return this;
+        }
+
+        /**
+         * Documents copied per second, -1 to copy as fast as the cluster accepts them.
+         */
+        public Builder requestsPerSecond(float requestsPerSecond) {
+            if (requestsPerSecond == 0 || requestsPerSecond < -1) {
+                throw new IllegalArgumentException("requestsPerSecond must be positive or -1");
+            }
+
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Date field set on every write, used to copy again the documents written during the copy.
+         *
+         * @param marginMillis how far before the start of a pass the next one starts, covers the clock skew
+         *                     between the writers and this client and the refresh of the previous index
+         */
+        public Builder changedSinceField(String changedSinceField, long marginMillis) {
+            if (marginMillis < 0) {
+                throw new IllegalArgumentException("marginMillis must not be negative");
+            }
+
+            this.changedSinceField = changedSinceField;
+            this.catchUpMarginMillis = marginMillis;
+            return this;
+        }
+
+        /**
+         * The alias is swapped once a catch-up pass copies at most {@code threshold} documents, or after
+         * {@code maxPasses} passes.
+         */
+        public Builder catchUp(long threshold, int maxPasses) {
+            if (threshold < 0 || maxPasses <= 0) {
+                throw new IllegalArgumentException("threshold must not be negative and maxPasses must be positive");
+            }
+
+            this.catchUpThreshold = threshold;
+            this.maxCatchUpPasses = maxPasses;
+            return this;
+        }
+
+        /**
+         * Deletes the previous index once the alias moved. By default it is kept to move the alias back, which is
+         * not possible when the alias is still a concrete index: that index is always deleted, and the reindex
+         * fails unless this is set.
+         */
+        public Builder deletePrevious(boolean deletePrevious) {
+            this.deletePrevious = deletePrevious;
+            return this;
+        }
+
+        public Reindexer build() {
+            return new Reindexer(this);
+        }
+    }
+}
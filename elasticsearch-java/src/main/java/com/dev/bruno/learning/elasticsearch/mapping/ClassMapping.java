@@ -0,0 +1,354 @@
+package com.dev.bruno.learning.elasticsearch.mapping;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer and deserializer of one class, resolved once: the fields, their names in _source, how each one is
+ * written and read and the constructor. Mapping a document then only walks these arrays.
+ */
+final class ClassMapping<T> {
+
+    private final Class<T> type;
+    private final Constructor<T> constructor;
+    private final Property[] properties;
+    private final Map<String, Property> propertiesByName = new HashMap<>();
+
+    private ClassMapping(Class<T> type, Constructor<T> constructor, Property[] properties) {
+        this.type = type;
+        this.constructor = constructor;
+        this.properties = properties;
+
+        for (Property property : properties) {
+            propertiesByName.put(property.name, property);
+        }
+    }
+
+    static <T> ClassMapping<T> of(Class<T> type, DocumentMapper mapper) {
+        Constructor<T> constructor;
+
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " needs a constructor without arguments", e);
+        }
+
+        List<Property> properties = new ArrayList<>();
+
+        for (Class<?> current = type; current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+
+                field.setAccessible(true);
+                properties.add(property(field, mapper));
+            }
+        }
+
+        return new ClassMapping<>(type, constructor, properties.toArray(new Property[0]));
+    }
+
+    void write(XContentBuilder builder, Object document) throws IOException {
+        builder.startObject();
+
+        for (Property property : properties) {
+            property.write(builder, document);
+        }
+
+        builder.endObject();
+    }
+
+    /**
+     * Reads the object the parser is positioned on, unknown fields are skipped.
+     */
+    T read(XContentParser parser) throws IOException {
+        if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+            throw new IOException("Expected an object for " + type.getName() + " but found " + parser.currentToken());
+        }
+
+        T document;
+        try {
+            document = constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create " + type.getName(), e);
+        }
+
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+            Property property = propertiesByName.get(parser.currentName());
+            token = parser.nextToken();
+
+            if (property == null) {
+                parser.skipChildren();
+            } else if (token == XContentParser.Token.VALUE_NULL) {
+                property.clear(document);
+            } else {
+                property.read(parser, document);
+            }
+        }
+
+        if (token != XContentParser.Token.END_OBJECT) {
+            throw new IOException("Malformed object for " + type.getName() + ", found " + token);
+        }
+
+        return document;
+    }
+
+    private static Property property(Field field, DocumentMapper mapper) {
+        DocumentField annotation = field.getAnnotation(DocumentField.class);
+        String name = annotation != null ? annotation.value() : field.getName();
+        Class<?> type = field.getType();
+
+        //Primitives are read and written without boxing
+        if (type == int.class) {
+            return new Property(name, field,
+                (builder, document) -> builder.field(name, field.getInt(document)),
+                (parser, document) -> field.setInt(document, parser.intValue()));
+        }
+
+        if (type == long.class) {
+            return new Property(name, field,
+                (builder, document) -> builder.field(name, field.getLong(document)),
+                (parser, document) -> field.setLong(document, parser.longValue()));
+        }
+
+        if (type == double.class) {
+            return new Property(name, field,
+                (builder, document) -> builder.field(name, field.getDouble(document)),
+                (parser, document) -> field.setDouble(document, parser.doubleValue()));
+        }
+
+        if (type == float.class) {
+            return new Property(name, field,
+                (builder, document) -> builder.field(name, field.getFloat(document)),
+                (parser, document) -> field.setFloat(document, parser.floatValue()));
+        }
+
+        if (type == boolean.class) {
+            return new Property(name, field,
+                (builder, document) -> builder.field(name, field.getBoolean(document)),
+                (parser, document) -> field.setBoolean(document, parser.booleanValue()));
+        }
+
+        Codec codec = codec(field.getGenericType(), field, mapper);
+
+        return new Property(name, field,
+            (builder, document) -> {
+                Object value = field.get(document);
+
+                //Null fields are left out of _source, Elasticsearch treats a missing field and a null the same way
+                if (value != null) {
+                    builder.field(name);
+                    codec.write(builder, value);
+                }
+            },
+            (parser, document) -> field.set(document, codec.read(parser)));
+    }
+
+    private static Codec codec(Type genericType, Field field, DocumentMapper mapper) {
+        if (genericType instanceof ParameterizedType && ((ParameterizedType) genericType).getRawType() == List.class) {
+            Codec element = codec(((ParameterizedType) genericType).getActualTypeArguments()[0], field, mapper);
+
+            return new Codec() {
+                @Override
+                public void write(XContentBuilder builder, Object value) throws IOException {
+                    builder.startArray();
+                    for (Object item : (List<?>) value) {
+                        if (item == null) {
+                            builder.nullValue();
+                        } else {
+                            element.write(builder, item);
+                        }
+                    }
+                    builder.endArray();
+                }
+
+                @Override
+                public Object read(XContentParser parser) throws IOException {
+                    List<Object> list = new ArrayList<>();
+
+                    //A single value is accepted for a list, as in _source a field holds one or many values
+                    if (parser.currentToken() != XContentParser.Token.START_ARRAY) {
+                        list.add(element.read(parser));
+                        return list;
+                    }
+
+                    XContentParser.Token token;
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        list.add(token == XContentParser.Token.VALUE_NULL ? null : element.read(parser));
+                    }
+
+                    return list;
+                }
+            };
+        }
+
+        if (!(genericType instanceof Class)) {
+            throw new IllegalArgumentException("Unsupported type " + genericType + " of " + field);
+        }
+
+        Class<?> type = (Class<?>) genericType;
+
+        if (type == String.class) {
+            return Codec.of((builder, value) -> builder.value((String) value), XContentParser::text);
+        }
+
+        if (type == Integer.class) {
+            return Codec.of((builder, value) -> builder.value((int) (Integer) value), XContentParser::intValue);
+        }
+
+        if (type == Long.class) {
+            return Codec.of((builder, value) -> builder.value((long) (Long) value), XContentParser::longValue);
+        }
+
+        if (type == Double.class) {
+            return Codec.of((builder, value) -> builder.value((double) (Double) value), XContentParser::doubleValue);
+        }
+
+        if (type == Float.class) {
+            return Codec.of((builder, value) -> builder.value((float) (Float) value), XContentParser::floatValue);
+        }
+
+        if (type == Boolean.class) {
+            return Codec.of((builder, value) -> builder.value((boolean) (Boolean) value), XContentParser::booleanValue);
+        }
+
+        if (type.isEnum()) {
+            return Codec.of((builder, value) -> builder.value(((Enum<?>) value).name()), parser -> enumValue(type, parser.text()));
+        }
+
+        if (type.isPrimitive() || type.isArray() || type.getName().startsWith("java.")) {
+            throw new IllegalArgumentException("Unsupported type " + type.getName() + " of " + field);
+        }
+
+        //Nested object, its mapping is resolved on first use so classes may refer to each other
+        return new Codec() {
+            private volatile ClassMapping<?> nested;
+
+            @Override
+            public void write(XContentBuilder builder, Object value) throws IOException {
+                mapping().write(builder, value);
+            }
+
+            @Override
+            public Object read(XContentParser parser) throws IOException {
+                return mapping().read(parser);
+            }
+
+            private ClassMapping<?> mapping() {
+                if (nested == null) {
+                    nested = mapper.mapping(type);
+                }
+
+                return nested;
+            }
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumValue(Class<?> type, String name) {
+        return Enum.valueOf((Class) type, name);
+    }
+
+    interface Codec {
+
+        void write(XContentBuilder builder, Object value) throws IOException;
+
+        Object read(XContentParser parser) throws IOException;
+
+        static Codec of(Writer writer, Reader reader) {
+            return new Codec() {
+                @Override
+                public void write(XContentBuilder builder, Object value) throws IOException {
+                    writer.write(builder, value);
+                }
+
+                @Override
+                public Object read(XContentParser parser) throws IOException {
+                    return reader.read(parser);
+                }
+            };
+        }
+    }
+
+    interface Writer {
+
+        void write(XContentBuilder builder, Object value) throws IOException;
+    }
+
+    interface Reader {
+
+        Object read(XContentParser parser) throws IOException;
+    }
+
+    private interface FieldWriter {
+
+        void write(XContentBuilder builder, Object document) throws IOException, IllegalAccessException;
+    }
+
+    private interface FieldReader {
+
+        void read(XContentParser parser, Object document) throws IOException, IllegalAccessException;
+    }
+
+    private static class Property {
+
+        private final String name;
+        private final Field field;
+        private final FieldWriter writer;
+        private final FieldReader reader;
+
+        Property(String name, Field field, FieldWriter writer, FieldReader reader) {
+            this.name = name;
+            this.field = field;
+            this.writer = writer;
+            this.reader = reader;
+        }
+
+        void write(XContentBuilder builder, Object document) throws IOException {
+            try {
+                writer.write(builder, document);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void read(XContentParser parser, Object document) throws IOException {
+            try {
+                reader.read(parser, document);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * A null in _source leaves primitives at their default value.
+         */
+        void clear(Object document) {
+            if (field.getType().isPrimitive()) {
+                return;
+            }
+
+            try {
+                field.set(document, null);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
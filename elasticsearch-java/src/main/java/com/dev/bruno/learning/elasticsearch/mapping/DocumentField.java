@@ -0,0 +1,16 @@
+package com.dev.bruno.learning.elasticsearch.mapping;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Name of the field in _source when it differs from the Java field, for example {@code account_number}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DocumentField {
+
+    String value();
+}
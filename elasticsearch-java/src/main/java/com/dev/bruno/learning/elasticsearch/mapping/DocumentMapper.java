@@ -0,0 +1,94 @@
+package com.dev.bruno.learning.elasticsearch.mapping;
+
+import com.dev.bruno.learning.elasticsearch.response.SourceFormat;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps POJOs to _source and back without going through a JSON String or a Map.
+ * <p>
+ * The fields of a class are resolved once and cached; afterwards documents are written field by field into an
+ * XContentBuilder and read token by token from the _source bytes. Non static, non transient fields are mapped, by
+ * their name or the one given by {@link DocumentField}. Supported types are the primitives and their wrappers,
+ * String, enums, nested objects and Lists of those. The classes need a constructor without arguments.
+ * <p>
+ * Instances are thread safe, share one per process so the mappings are resolved only once.
+ */
+public class DocumentMapper {
+
+    private final ConcurrentMap<Class<?>, ClassMapping<?>> mappings = new ConcurrentHashMap<>();
+    private final XContentType xContentType;
+
+    public DocumentMapper() {
+        this(XContentType.JSON);
+    }
+
+    /**
+     * @param xContentType format of the sources written by this mapper, SMILE and CBOR are cheaper to write and
+     *                     for the node to parse than JSON
+     */
+    public DocumentMapper(XContentType xContentType) {
+        this.xContentType = xContentType;
+    }
+
+    public XContentBuilder toXContent(Object document) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(xContentType);
+        mapping(document.getClass()).write(builder, document);
+
+        return builder;
+    }
+
+    public IndexRequest indexRequest(String index, String type, String id, Object document) throws IOException {
+        return new IndexRequest(index, type, id).source(toXContent(document));
+    }
+
+    /**
+     * Reads a _source in any XContent format.
+     */
+    public <T> T read(BytesReference source, Class<T> type) throws IOException {
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, source, SourceFormat.of(source))) {
+            parser.nextToken();
+
+            return mapping(type).read(parser);
+        }
+    }
+
+    /**
+     * @return null when the document does not exist or its source was not fetched
+     */
+    public <T> T read(GetResponse response, Class<T> type) throws IOException {
+        if (!response.isExists() || response.isSourceEmpty()) {
+            return null;
+        }
+
+        return read(response.getSourceAsBytesRef(), type);
+    }
+
+    /**
+     * @return null when the source of the hit was not fetched
+     */
+    public <T> T read(SearchHit hit, Class<T> type) throws IOException {
+        if (!hit.hasSource()) {
+            return null;
+        }
+
+        return read(hit.getSourceRef(), type);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> ClassMapping<T> mapping(Class<T> type) {
+        return (ClassMapping<T>) mappings.computeIfAbsent(type, key -> ClassMapping.of(key, this));
+    }
+}
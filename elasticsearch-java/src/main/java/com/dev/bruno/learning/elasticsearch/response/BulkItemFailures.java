@@ -0,0 +1,55 @@
+package com.dev.bruno.learning.elasticsearch.response;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+
+/**
+ * Counts the items of a _bulk response that failed while streaming it, reading no further than the errors flag when
+ * there are none.
+ */
+public final class BulkItemFailures {
+
+    private BulkItemFailures() {
+    }
+
+    public static long count(XContentParser parser) throws IOException {
+        long failures = 0;
+
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            return 0;
+        }
+
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String field = parser.currentName();
+            XContentParser.Token token = parser.nextToken();
+
+            if (field.equals("errors") && token == XContentParser.Token.VALUE_BOOLEAN && !parser.booleanValue()) {
+                return 0;
+            }
+
+            if (!field.equals("items") || token != XContentParser.Token.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+
+            //Every item is an object with the action as its only field, the error is a field of the action
+            while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    parser.nextToken();
+
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        if (parser.currentName().equals("error")) {
+                            failures++;
+                        }
+
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+
+        return failures;
+    }
+}
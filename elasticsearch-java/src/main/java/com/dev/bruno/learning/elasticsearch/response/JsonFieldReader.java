@@ -0,0 +1,203 @@
+package com.dev.bruno.learning.elasticsearch.response;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls a few fields out of a JSON response straight from the entity stream.
+ * <p>
+ * Paths are dot separated ({@code hits.total}), array elements are addressed by their position
+ * ({@code hits.hits.0._id}) and {@code *} matches any single segment ({@code hits.hits.*._source.name}).
+ * A path ending on an object or an array, such as {@code aggregations.by_state} or {@code hits.hits.*._source},
+ * is read as the JSON of that subtree.
+ * Subtrees that cannot lead to one of the paths are skipped by the tokenizer, so neither the body nor the
+ * unwanted values are ever materialized.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class JsonFieldReader {
+
+    private static final String WILDCARD = "*";
+
+    private final String[][] paths;
+
+    private JsonFieldReader(String... paths) {
+        this.paths = new String[paths.length][];
+
+        for (int i = 0; i < paths.length; i++) {
+            this.paths[i] = paths[i].split("\\.");
+        }
+    }
+
+    public static JsonFieldReader of(String... paths) {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("At least one path is required");
+        }
+
+        return new JsonFieldReader(paths);
+    }
+
+    public JsonFields read(InputStream inputStream) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            JsonFields fields = new JsonFields();
+            List<String> path = new ArrayList<>();
+
+            readValue(reader, path, fields, new ArrayList<>());
+
+            return fields;
+        }
+    }
+
+    /**
+     * @param captures writers of the objects and arrays being copied, every token read is written to all of them
+     */
+    private void readValue(JsonReader reader, List<String> path, JsonFields fields, List<JsonWriter> captures) throws IOException {
+        JsonToken token = reader.peek();
+
+        switch (token) {
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                StringWriter capture = null;
+
+                if (matches(path)) {
+                    capture = new StringWriter();
+                    captures.add(new JsonWriter(capture));
+                }
+
+                readContainer(reader, token, path, fields, captures);
+
+                if (capture != null) {
+                    captures.remove(captures.size() - 1).close();
+                    fields.put(String.join(".", path), capture.toString());
+                }
+                break;
+
+            case NULL:
+                reader.nextNull();
+                for (JsonWriter writer : captures) {
+                    writer.nullValue();
+                }
+                if (matches(path)) {
+                    fields.put(String.join(".", path), null);
+                }
+                break;
+
+            case BOOLEAN:
+                boolean value = reader.nextBoolean();
+                for (JsonWriter writer : captures) {
+                    writer.value(value);
+                }
+                if (matches(path)) {
+                    fields.put(String.join(".", path), Boolean.toString(value));
+                }
+                break;
+
+            default:
+                //Numbers are kept as their literal, so longs do not lose precision through a double
+                String literal = reader.nextString();
+                for (JsonWriter writer : captures) {
+                    if (token == JsonToken.NUMBER) {
+                        writer.jsonValue(literal);
+                    } else {
+                        writer.value(literal);
+                    }
+                }
+                if (matches(path)) {
+                    fields.put(String.join(".", path), literal);
+                }
+        }
+    }
+
+    private void readContainer(JsonReader reader, JsonToken token, List<String> path, JsonFields fields, List<JsonWriter> captures) throws IOException {
+        if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            for (JsonWriter writer : captures) {
+                writer.beginObject();
+            }
+
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                for (JsonWriter writer : captures) {
+                    writer.name(name);
+                }
+
+                path.add(name);
+                visit(reader, path, fields, captures);
+                path.remove(path.size() - 1);
+            }
+
+            reader.endObject();
+            for (JsonWriter writer : captures) {
+                writer.endObject();
+            }
+            return;
+        }
+
+        reader.beginArray();
+        for (JsonWriter writer : captures) {
+            writer.beginArray();
+        }
+
+        for (int i = 0; reader.hasNext(); i++) {
+            path.add(Integer.toString(i));
+            visit(reader, path, fields, captures);
+            path.remove(path.size() - 1);
+        }
+
+        reader.endArray();
+        for (JsonWriter writer : captures) {
+            writer.endArray();
+        }
+    }
+
+    private void visit(JsonReader reader, List<String> path, JsonFields fields, List<JsonWriter> captures) throws IOException {
+        //Inside a captured subtree every value is copied, even the ones no path asks for
+        if (!captures.isEmpty() || isPrefix(path)) {
+            readValue(reader, path, fields, captures);
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private boolean isPrefix(List<String> path) {
+        for (String[] candidate : paths) {
+            if (candidate.length >= path.size() && matches(candidate, path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean matches(List<String> path) {
+        for (String[] candidate : paths) {
+            if (candidate.length == path.size() && matches(candidate, path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the first segments of the pattern match the path, {@code *} matching any single segment.
+     */
+    static boolean matches(String[] pattern, List<String> path) {
+        for (int i = 0; i < path.size(); i++) {
+            if (!WILDCARD.equals(pattern[i]) && !pattern[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
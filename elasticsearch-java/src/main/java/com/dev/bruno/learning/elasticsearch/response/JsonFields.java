@@ -0,0 +1,82 @@
+package com.dev.bruno.learning.elasticsearch.response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Fields read by a {@link JsonFieldReader}, keyed by their concrete path ({@code hits.hits.3._source.name}).
+ * <p>
+ * Values are kept as their JSON literal and converted by the typed accessors, so numbers are parsed once, straight
+ * into the primitive the caller asks for. Objects and arrays are kept as their JSON.
+ */
+public class JsonFields {
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    JsonFields() {
+    }
+
+    void put(String path, String value) {
+        values.put(path, value);
+    }
+
+    public boolean contains(String path) {
+        return values.containsKey(path);
+    }
+
+    public String getString(String path) {
+        if (!values.containsKey(path)) {
+            throw new NoSuchElementException("No value read for " + path);
+        }
+
+        return values.get(path);
+    }
+
+    public long getLong(String path) {
+        return Long.parseLong(getString(path));
+    }
+
+    public int getInt(String path) {
+        return Integer.parseInt(getString(path));
+    }
+
+    public double getDouble(String path) {
+        return Double.parseDouble(getString(path));
+    }
+
+    public boolean getBoolean(String path) {
+        return Boolean.parseBoolean(getString(path));
+    }
+
+    /**
+     * Values whose path matches the pattern, in document order. {@code *} matches any single segment.
+     */
+    public List<String> getAll(String pattern) {
+        String[] segments = pattern.split("\\.");
+        List<String> matches = new ArrayList<>();
+
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String[] path = entry.getKey().split("\\.");
+
+            if (segments.length == path.length && JsonFieldReader.matches(segments, Arrays.asList(path))) {
+                matches.add(entry.getValue());
+            }
+        }
+
+        return matches;
+    }
+
+    public Map<String, String> asMap() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
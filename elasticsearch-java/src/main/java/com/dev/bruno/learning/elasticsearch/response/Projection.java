@@ -0,0 +1,200 @@
+package com.dev.bruno.learning.elasticsearch.response;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields a reader needs, declared once and applied to gets and searches.
+ * <p>
+ * Source fields become _source includes, so the node only sends those, and are decoded from the returned _source
+ * by a {@link JsonFieldReader} instead of a Map of the whole document. They use the paths of JsonFieldReader: leaf
+ * fields such as {@code balance} or {@code address.city}, {@code tags.*} for the values of an array, and objects or
+ * arrays such as {@code address} read as their JSON. A _source indexed as SMILE or CBOR is converted to JSON first,
+ * which costs a parse of the projected fields. Doc value fields (searches only) and stored fields are read from the
+ * fields of the hit or get and keyed by their name, or by {@code name.0}, {@code name.1}... when they hold several
+ * values.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class Projection {
+
+    private final String[] sourceFields;
+    private final String[] sourceIncludes;
+    private final String[] docValueFields;
+    private final String[] storedFields;
+    private final JsonFieldReader sourceReader;
+
+    private Projection(Builder builder) {
+        this.sourceFields = builder.sourceFields.toArray(new String[0]);
+        this.docValueFields = builder.docValueFields.toArray(new String[0]);
+        this.storedFields = builder.storedFields.toArray(new String[0]);
+        this.sourceIncludes = includes(sourceFields);
+        this.sourceReader = sourceFields.length > 0 ? JsonFieldReader.of(sourceFields) : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public GetRequest apply(GetRequest getRequest) {
+        getRequest.fetchSourceContext(fetchSourceContext());
+
+        if (storedFields.length > 0) {
+            getRequest.storedFields(storedFields);
+        }
+
+        return getRequest;
+    }
+
+    public SearchRequest apply(SearchRequest searchRequest) {
+        if (searchRequest.source() == null) {
+            searchRequest.source(new SearchSourceBuilder());
+        }
+
+        SearchSourceBuilder source = searchRequest.source();
+        source.fetchSource(fetchSourceContext());
+
+        for (String field : docValueFields) {
+            source.docValueField(field);
+        }
+
+        if (storedFields.length > 0) {
+            source.storedFields(Arrays.asList(storedFields));
+        }
+
+        return searchRequest;
+    }
+
+    public JsonFields read(GetResponse response) throws IOException {
+        JsonFields fields = readSource(response.isSourceEmpty() ? null : response.getSourceAsBytesRef());
+        addFields(fields, response.getFields());
+
+        return fields;
+    }
+
+    public JsonFields read(SearchHit hit) throws IOException {
+        JsonFields fields = readSource(hit.hasSource() ? hit.getSourceRef() : null);
+        addFields(fields, hit.getFields());
+
+        return fields;
+    }
+
+    private FetchSourceContext fetchSourceContext() {
+        return sourceIncludes.length > 0
+            ? new FetchSourceContext(true, sourceIncludes, null)
+            : FetchSourceContext.DO_NOT_FETCH_SOURCE;
+    }
+
+    private JsonFields readSource(BytesReference source) throws IOException {
+        if (source == null || sourceReader == null) {
+            return new JsonFields();
+        }
+
+        XContentType xContentType = SourceFormat.of(source);
+
+        if (xContentType == XContentType.JSON) {
+            return sourceReader.read(source.streamInput());
+        }
+
+        //A document indexed as SMILE or CBOR keeps that format, the reader only knows JSON
+        String json = XContentHelper.convertToJson(source, false, xContentType);
+
+        return sourceReader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void addFields(JsonFields fields, Map<String, DocumentField> documentFields) {
+        for (DocumentField field : documentFields.values()) {
+            List<Object> values = field.getValues();
+
+            if (values.size() == 1) {
+                fields.put(field.getName(), String.valueOf(values.get(0)));
+                continue;
+            }
+
+            for (int i = 0; i < values.size(); i++) {
+                fields.put(field.getName() + "." + i, String.valueOf(values.get(i)));
+            }
+        }
+    }
+
+    /**
+     * _source filtering works on object paths, so array positions and wildcards are cut from the reader paths.
+     */
+    private static String[] includes(String[] paths) {
+        Set<String> includes = new LinkedHashSet<>();
+
+        for (String path : paths) {
+            List<String> segments = new ArrayList<>();
+
+            for (String segment : path.split("\\.")) {
+                if (segment.equals("*") || segment.chars().allMatch(Character::isDigit)) {
+                    break;
+                }
+
+                segments.add(segment);
+            }
+
+            includes.add(segments.isEmpty() ? "*" : String.join(".", segments));
+        }
+
+        return includes.toArray(new String[0]);
+    }
+
+    public static class Builder {
+
+        private final Set<String> sourceFields = new LinkedHashSet<>();
+        private final Set<String> docValueFields = new LinkedHashSet<>();
+        private final Set<String> storedFields = new LinkedHashSet<>();
+
+        private Builder() {
+        }
+
+        public Builder source(String... fields) {
+            sourceFields.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        /**
+         * Read from the doc values of the fields, the cheapest way to get keywords, numbers and dates. Gets do not
+         * support doc values, they ignore these fields.
+         */
+        public Builder docValues(String... fields) {
+            docValueFields.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        /**
+         * Fields mapped with {@code store: true}.
+         */
+        public Builder stored(String... fields) {
+            storedFields.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        public Projection build() {
+            if (sourceFields.isEmpty() && docValueFields.isEmpty() && storedFields.isEmpty()) {
+                throw new IllegalArgumentException("A projection needs at least one field");
+            }
+
+            return new Projection(this);
+        }
+    }
+}
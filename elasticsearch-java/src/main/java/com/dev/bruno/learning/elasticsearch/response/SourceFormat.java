@@ -0,0 +1,48 @@
+package com.dev.bruno.learning.elasticsearch.response;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Format of a _source. The node keeps the _source as it was sent, so a document indexed as SMILE or CBOR comes back
+ * in that format whatever the format of the response around it.
+ */
+public final class SourceFormat {
+
+    private SourceFormat() {
+    }
+
+    /**
+     * Detects the format from the first bytes of the source, which is always an object.
+     *
+     * @throws IllegalArgumentException when the bytes do not start an object of a known format
+     */
+    public static XContentType of(BytesReference source) {
+        int length = source.length();
+
+        //SMILE starts with its ":)\n" header
+        if (length >= 3 && source.get(0) == ':' && source.get(1) == ')' && source.get(2) == '\n') {
+            return XContentType.SMILE;
+        }
+
+        //CBOR maps are major type 5, 0xBF when their length is not known in advance
+        if (length > 0 && (source.get(0) == (byte) 0xBF || (source.get(0) & 0xE0) == 0xA0)) {
+            return XContentType.CBOR;
+        }
+
+        int i = 0;
+        while (i < length && Character.isWhitespace(source.get(i))) {
+            i++;
+        }
+
+        if (i < length && source.get(i) == '{') {
+            return XContentType.JSON;
+        }
+
+        if (i + 2 < length && source.get(i) == '-' && source.get(i + 1) == '-' && source.get(i + 2) == '-') {
+            return XContentType.YAML;
+        }
+
+        throw new IllegalArgumentException("The source is not an object in a known format");
+    }
+}
@@ -0,0 +1,216 @@
+package com.dev.bruno.learning.elasticsearch.search;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy iterator over every hit of a search, page by page.
+ * <p>
+ * As soon as a page arrives the next one is requested asynchronously, so the network time of page N+1 overlaps
+ * with the processing of page N while at most two pages are held in memory.
+ * <p>
+ * The iterator takes ownership of the SearchRequest: its size, sort and search_after or scroll are changed.
+ * A scroll context is released on the cluster as soon as the last page arrives; close the iterator (or the stream)
+ * when stopping early so it is released as well.
+ */
+public abstract class HitIterator implements Iterator<SearchHit>, Closeable {
+
+    public static final String DEFAULT_TIEBREAKER = "_id";
+    public static final TimeValue DEFAULT_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    protected final RestHighLevelClient highLevelClient;
+    protected final SearchRequest searchRequest;
+    protected final int pageSize;
+
+    private SearchHit[] page = new SearchHit[0];
+    private int position;
+    private CompletableFuture<SearchResponse> next;
+    private boolean exhausted;
+    private boolean closed;
+
+    protected HitIterator(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+
+        this.highLevelClient = highLevelClient;
+        this.searchRequest = searchRequest;
+        this.pageSize = pageSize;
+
+        if (searchRequest.source() == null) {
+            searchRequest.source(new SearchSourceBuilder());
+        }
+
+        searchRequest.source().size(pageSize);
+    }
+
+    /**
+     * Iterates with search_after when the request is sorted, otherwise with a scroll in _doc order, the cheapest
+     * way to read every hit when the order does not matter.
+     */
+    public static HitIterator of(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize) {
+        SearchSourceBuilder source = searchRequest.source();
+
+        if (source != null && source.sorts() != null && !source.sorts().isEmpty()) {
+            return searchAfter(highLevelClient, searchRequest, pageSize, DEFAULT_TIEBREAKER);
+        }
+
+        return scroll(highLevelClient, searchRequest, pageSize, DEFAULT_KEEP_ALIVE);
+    }
+
+    public static HitIterator searchAfter(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize, String tiebreaker) {
+        return new SearchAfterIterator(highLevelClient, searchRequest, pageSize, tiebreaker);
+    }
+
+    public static HitIterator scroll(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize, TimeValue keepAlive) {
+        return new ScrollIterator(highLevelClient, searchRequest, pageSize, keepAlive);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position == page.length) {
+            if (exhausted || closed) {
+                return false;
+            }
+
+            if (next == null) {
+                next = request(this::first);
+            }
+
+            SearchResponse response = await(next);
+            next = null;
+
+            page = response.getHits().getHits();
+            position = 0;
+
+            if (isLast(response)) {
+                exhausted = true;
+
+                //The last page is in memory, the scroll context is not needed until the iterator is closed
+                try {
+                    release();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                next = request(listener -> next(response, listener));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the first request without waiting for its response.
+     */
+    void start() {
+        if (next == null && page.length == 0 && !exhausted && !closed) {
+            next = request(this::first);
+        }
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return page[position++];
+    }
+
+    public Stream<SearchHit> stream() {
+        Spliterator<SearchHit> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (next != null) {
+            //The prefetched page may own a new scroll id, it must be released as well
+            try {
+                await(next);
+            } catch (RuntimeException e) {
+                //Nothing to release if the last request failed
+            }
+        }
+
+        release();
+    }
+
+    protected abstract void first(ActionListener<SearchResponse> listener);
+
+    protected abstract void next(SearchResponse previous, ActionListener<SearchResponse> listener);
+
+    protected abstract boolean isLast(SearchResponse response);
+
+    /**
+     * Called with every page before it is consumed.
+     */
+    protected void onPage(SearchResponse response) {
+    }
+
+    protected abstract void release() throws IOException;
+
+    private CompletableFuture<SearchResponse> request(Consumer<ActionListener<SearchResponse>> call) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+
+        call.accept(ActionListener.wrap(future::complete, future::completeExceptionally));
+
+        return future.thenApply(response -> {
+            onPage(response);
+            return response;
+        });
+    }
+
+    private static SearchResponse await(CompletableFuture<SearchResponse> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next page", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+}
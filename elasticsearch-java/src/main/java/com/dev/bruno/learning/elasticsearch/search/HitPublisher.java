@@ -0,0 +1,184 @@
+package com.dev.bruno.learning.elasticsearch.search;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams publisher of every hit of a search, read through a {@link HitIterator}.
+ * <p>
+ * Hits are only emitted against the demand of the subscriber. The iterator holds at most the current and the
+ * prefetched page, so a slow subscriber slows the scroll or search_after down instead of filling the heap. On Java 9
+ * or later {@code org.reactivestreams.FlowAdapters} turns it into a {@code java.util.concurrent.Flow.Publisher}.
+ * <p>
+ * The search can only be read once, so the publisher accepts a single subscriber. The hits are emitted from the
+ * executor, which waits for the pages and must therefore tolerate blocking tasks; by default a thread is started
+ * per subscription.
+ */
+public class HitPublisher implements Publisher<SearchHit> {
+
+    private final HitIterator iterator;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public HitPublisher(HitIterator iterator) {
+        this(iterator, null);
+    }
+
+    public HitPublisher(HitIterator iterator, Executor executor) {
+        this.iterator = iterator;
+        this.executor = executor;
+    }
+
+    /**
+     * Publishes with search_after when the request is sorted, otherwise with a scroll, see {@link HitIterator#of}.
+     */
+    public static HitPublisher of(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize) {
+        return new HitPublisher(HitIterator.of(highLevelClient, searchRequest, pageSize));
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super SearchHit> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A hit publisher accepts a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new HitSubscription(subscriber));
+    }
+
+    private class HitSubscription implements Subscription {
+
+        private final Subscriber<? super SearchHit> subscriber;
+        private final ExecutorService ownExecutor;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private volatile boolean done;
+
+        HitSubscription(Subscriber<? super SearchHit> subscriber) {
+            this.subscriber = subscriber;
+            this.ownExecutor = executor != null ? null : Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "hit-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Demand must be positive, was " + n);
+            } else {
+                //Capped, an unbounded demand stays at Long.MAX_VALUE
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            //Only one drain runs at a time, the signals that arrive meanwhile are handled by its next round
+            if (!done && pending.getAndIncrement() == 0) {
+                (ownExecutor != null ? ownExecutor : executor).execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+
+            while (!done) {
+                if (cancelled) {
+                    terminate();
+                } else if (invalidRequest != null) {
+                    terminate();
+                    subscriber.onError(invalidRequest);
+                } else {
+                    emit();
+                }
+
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void emit() {
+            long requested = demand.get();
+            long emitted = 0;
+
+            while (emitted < requested && !cancelled && invalidRequest == null) {
+                boolean hasNext;
+
+                try {
+                    hasNext = iterator.hasNext();
+                } catch (RuntimeException e) {
+                    terminate();
+                    subscriber.onError(e);
+                    return;
+                }
+
+                if (!hasNext) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+
+                subscriber.onNext(iterator.next());
+                emitted++;
+            }
+
+            if (requested != Long.MAX_VALUE) {
+                demand.addAndGet(-emitted);
+            }
+        }
+
+        private void terminate() {
+            done = true;
+
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                //The hits were delivered, a scroll that could not be cleared expires with its keep alive
+            }
+
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.dev.bruno.learning.elasticsearch.search;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+
+import java.io.IOException;
+
+/**
+ * Pages with a scroll. Unsorted requests are sorted by _doc, which lets every shard stream its documents in
+ * index order without scoring them.
+ */
+class ScrollIterator extends HitIterator {
+
+    private final TimeValue keepAlive;
+
+    private volatile String scrollId;
+    private long seen;
+
+    ScrollIterator(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize, TimeValue keepAlive) {
+        super(highLevelClient, searchRequest, pageSize);
+
+        this.keepAlive = keepAlive;
+
+        searchRequest.scroll(keepAlive);
+
+        if (searchRequest.source().sorts() == null || searchRequest.source().sorts().isEmpty()) {
+            searchRequest.source().sort(FieldSortBuilder.DOC_FIELD_NAME);
+        }
+    }
+
+    @Override
+    protected void first(ActionListener<SearchResponse> listener) {
+        highLevelClient.searchAsync(searchRequest, listener);
+    }
+
+    @Override
+    protected void next(SearchResponse previous, ActionListener<SearchResponse> listener) {
+        SearchScrollRequest scrollRequest = new SearchScrollRequest(previous.getScrollId());
+        scrollRequest.scroll(keepAlive);
+
+        highLevelClient.searchScrollAsync(scrollRequest, listener);
+    }
+
+    @Override
+    protected boolean isLast(SearchResponse response) {
+        int hits = response.getHits().getHits().length;
+        seen += hits;
+
+        return hits == 0 || seen >= response.getHits().getTotalHits();
+    }
+
+    @Override
+    protected void onPage(SearchResponse response) {
+        if (response.getScrollId() != null) {
+            scrollId = response.getScrollId();
+        }
+    }
+
+    @Override
+    protected void release() throws IOException {
+        if (scrollId == null) {
+            return;
+        }
+
+        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+        clearScrollRequest.addScrollId(scrollId);
+
+        highLevelClient.clearScroll(clearScrollRequest);
+        scrollId = null;
+    }
+}
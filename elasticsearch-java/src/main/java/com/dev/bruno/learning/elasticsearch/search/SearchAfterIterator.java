@@ -0,0 +1,62 @@
+package com.dev.bruno.learning.elasticsearch.search;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+
+/**
+ * Pages with search_after. It keeps no context on the cluster, but the sort must be unique per document, so the
+ * tiebreaker field is appended to the sort when it is not there yet.
+ */
+class SearchAfterIterator extends HitIterator {
+
+    SearchAfterIterator(RestHighLevelClient highLevelClient, SearchRequest searchRequest, int pageSize, String tiebreaker) {
+        super(highLevelClient, searchRequest, pageSize);
+
+        if (!isSortedBy(tiebreaker)) {
+            searchRequest.source().sort(SortBuilders.fieldSort(tiebreaker));
+        }
+    }
+
+    @Override
+    protected void first(ActionListener<SearchResponse> listener) {
+        highLevelClient.searchAsync(searchRequest, listener);
+    }
+
+    @Override
+    protected void next(SearchResponse previous, ActionListener<SearchResponse> listener) {
+        SearchHit[] hits = previous.getHits().getHits();
+
+        searchRequest.source().searchAfter(hits[hits.length - 1].getSortValues());
+        highLevelClient.searchAsync(searchRequest, listener);
+    }
+
+    @Override
+    protected boolean isLast(SearchResponse response) {
+        return response.getHits().getHits().length < pageSize;
+    }
+
+    @Override
+    protected void release() {
+        //search_after keeps nothing open on the cluster
+    }
+
+    private boolean isSortedBy(String field) {
+        if (searchRequest.source().sorts() == null) {
+            return false;
+        }
+
+        for (SortBuilder<?> sort : searchRequest.source().sorts()) {
+            if (sort instanceof FieldSortBuilder && ((FieldSortBuilder) sort).getFieldName().equals(field)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
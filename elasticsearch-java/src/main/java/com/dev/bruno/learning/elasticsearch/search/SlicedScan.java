@@ -0,0 +1,413 @@
+package com.dev.bruno.learning.elasticsearch.search;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads every hit of a search through N sliced scrolls, so each slice is served by a different set of shards and
+ * the whole scan scales with the number of shards and client cores.
+ * <p>
+ * In the default mode every slice is drained by a task of the executor into a bounded queue and the hits come out
+ * in arrival order. In ordered mode the slices are merged by the sort of the request instead; each slice still
+ * prefetches its next page, but the merge runs on the consuming thread.
+ */
+public class SlicedScan {
+
+    private final RestHighLevelClient highLevelClient;
+    private final SearchRequest searchRequest;
+    private final int slices;
+    private final int pageSize;
+    private final TimeValue keepAlive;
+    private final ExecutorService executor;
+    private final boolean ordered;
+
+    private SlicedScan(Builder builder) {
+        this.highLevelClient = builder.highLevelClient;
+        this.searchRequest = builder.searchRequest;
+        this.slices = builder.slices;
+        this.pageSize = builder.pageSize;
+        this.keepAlive = builder.keepAlive;
+        this.executor = builder.executor;
+        this.ordered = builder.ordered;
+    }
+
+    public static Builder builder(RestHighLevelClient highLevelClient, SearchRequest searchRequest) {
+        return new Builder(highLevelClient, searchRequest);
+    }
+
+    /**
+     * The stream must be closed, it owns the scroll contexts and, unless one was given, the executor.
+     */
+    public Stream<SearchHit> stream() {
+        //The request of the caller is left as it was given
+        SearchSourceBuilder source = searchRequest.source() != null
+            ? searchRequest.source().copyWithNewSlice(searchRequest.source().slice())
+            : new SearchSourceBuilder();
+
+        List<SortBuilder<?>> sorts = source.sorts();
+        if (sorts == null || sorts.isEmpty()) {
+            if (ordered) {
+                throw new IllegalStateException("An ordered scan needs a sorted request");
+            }
+
+            source.sort(FieldSortBuilder.DOC_FIELD_NAME);
+        }
+
+        List<HitIterator> iterators = new ArrayList<>(slices);
+        for (int i = 0; i < slices; i++) {
+            iterators.add(HitIterator.scroll(highLevelClient, slice(source, i), pageSize, keepAlive));
+        }
+
+        CloseableIterator iterator = ordered
+            ? new MergingIterator(iterators, comparator(source.sorts()))
+            : new ConcurrentIterator(iterators);
+
+        Spliterator<SearchHit> spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+    }
+
+    private SearchRequest slice(SearchSourceBuilder source, int id) {
+        SearchRequest slice = new SearchRequest(searchRequest.indices(), source.copyWithNewSlice(new SliceBuilder(id, slices)));
+        slice.types(searchRequest.types());
+        slice.routing(searchRequest.routing());
+        slice.preference(searchRequest.preference());
+        slice.indicesOptions(searchRequest.indicesOptions());
+
+        return slice;
+    }
+
+    private interface CloseableIterator extends Iterator<SearchHit> {
+
+        void close();
+    }
+
+    /**
+     * Drains every slice on the executor into a bounded queue, which blocks the slices when the consumer is slower.
+     */
+    private class ConcurrentIterator implements CloseableIterator {
+
+        private final Object end = new Object();
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(pageSize * 2);
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final ExecutorService workers;
+
+        private volatile boolean closed;
+        private int running;
+        private SearchHit next;
+
+        ConcurrentIterator(List<HitIterator> iterators) {
+            this.workers = executor != null ? executor : Executors.newFixedThreadPool(iterators.size(), runnable -> {
+                Thread thread = new Thread(runnable, "sliced-scan");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.running = iterators.size();
+
+            for (HitIterator iterator : iterators) {
+                tasks.add(workers.submit(() -> drain(iterator)));
+            }
+        }
+
+        private void drain(HitIterator iterator) {
+            try {
+                while (iterator.hasNext()) {
+                    queue.put(iterator.next());
+                }
+            } catch (InterruptedException e) {
+                //Cancelled by close, the scroll is still released below
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                //Clears the cancellation, otherwise the clear scroll request would be interrupted too
+                Thread.interrupted();
+
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+
+                signalEnd();
+            }
+        }
+
+        private void signalEnd() {
+            //A consumer that closed the stream does not read the queue anymore, so a full queue must not block forever
+            while (!closed) {
+                try {
+                    if (queue.offer(end, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && running > 0) {
+                Object element;
+
+                try {
+                    element = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the next hit", e);
+                }
+
+                if (element == end) {
+                    running--;
+
+                    //Every slice was drained, the threads are not kept until the stream is closed
+                    if (running == 0 && executor == null) {
+                        workers.shutdown();
+                    }
+                } else {
+                    next = (SearchHit) element;
+                }
+
+                checkFailure();
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            SearchHit hit = next;
+            next = null;
+
+            return hit;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+
+            if (executor == null) {
+                workers.shutdown();
+            }
+        }
+
+        private void checkFailure() {
+            Exception exception = failure.get();
+
+            if (exception instanceof IOException) {
+                throw new UncheckedIOException((IOException) exception);
+            }
+
+            if (exception instanceof RuntimeException) {
+                throw (RuntimeException) exception;
+            }
+        }
+    }
+
+    /**
+     * K-way merge of the slices, each of them already sorted by the request.
+     */
+    private static class MergingIterator implements CloseableIterator {
+
+        private final List<HitIterator> iterators;
+        private final PriorityQueue<Head> heads;
+
+        MergingIterator(List<HitIterator> iterators, Comparator<SearchHit> comparator) {
+            this.iterators = iterators;
+            this.heads = new PriorityQueue<>(iterators.size(), (a, b) -> comparator.compare(a.hit, b.hit));
+
+            //The first pages are requested together instead of one slice after the other
+            for (HitIterator iterator : iterators) {
+                iterator.start();
+            }
+
+            for (HitIterator iterator : iterators) {
+                advance(iterator);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public SearchHit next() {
+            Head head = heads.poll();
+
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+
+            advance(head.iterator);
+
+            return head.hit;
+        }
+
+        @Override
+        public void close() {
+            IOException failure = null;
+
+            for (HitIterator iterator : iterators) {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+
+        private void advance(HitIterator iterator) {
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator.next(), iterator));
+            }
+        }
+    }
+
+    private static class Head {
+
+        private final SearchHit hit;
+        private final HitIterator iterator;
+
+        Head(SearchHit hit, HitIterator iterator) {
+            this.hit = hit;
+            this.iterator = iterator;
+        }
+    }
+
+    private static Comparator<SearchHit> comparator(List<SortBuilder<?>> sorts) {
+        SortOrder[] orders = new SortOrder[sorts.size()];
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = sorts.get(i).order();
+        }
+
+        return (a, b) -> {
+            Object[] left = a.getSortValues();
+            Object[] right = b.getSortValues();
+
+            for (int i = 0; i < orders.length; i++) {
+                int result = compareValues(left[i], right[i]);
+
+                if (result != 0) {
+                    return orders[i] == SortOrder.DESC ? -result : result;
+                }
+            }
+
+            return 0;
+        };
+    }
+
+    private static int compareValues(Object left, Object right) {
+        if (left == null || right == null) {
+            return left == null ? (right == null ? 0 : 1) : -1;
+        }
+
+        boolean integers = (left instanceof Long || left instanceof Integer) && (right instanceof Long || right instanceof Integer);
+
+        if (integers) {
+            return Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+        }
+
+        if (left instanceof Number && right instanceof Number) {
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+
+        return left.toString().compareTo(right.toString());
+    }
+
+    public static class Builder {
+
+        private final RestHighLevelClient highLevelClient;
+        private final SearchRequest searchRequest;
+        private int slices = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private int pageSize = 500;
+        private TimeValue keepAlive = HitIterator.DEFAULT_KEEP_ALIVE;
+        private ExecutorService executor;
+        private boolean ordered;
+
+        private Builder(RestHighLevelClient highLevelClient, SearchRequest searchRequest) {
+            this.highLevelClient = highLevelClient;
+            this.searchRequest = searchRequest;
+        }
+
+        /**
+         * Number of slices, ideally the number of shards of the index or a multiple of it.
+         */
+        public Builder slices(int slices) {
+            if (slices < 2) {
+                throw new IllegalArgumentException("A sliced scan needs at least 2 slices");
+            }
+
+            this.slices = slices;
+            return this;
+        }
+
+        public Builder pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder keepAlive(TimeValue keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Executor that drains the slices. It needs one free thread per slice; by default a pool is created per scan.
+         */
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder ordered(boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
+
+        public SlicedScan build() {
+            return new SlicedScan(this);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.dev.bruno.learning.elasticsearch;
 
-import com.google.gson.Gson;
+import com.dev.bruno.learning.elasticsearch.client.ClientFactory;
+import com.dev.bruno.learning.elasticsearch.client.ClientSettings;
+import com.dev.bruno.learning.elasticsearch.client.NodeRouter;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
 import org.apache.http.HttpHost;
 import org.elasticsearch.action.main.MainResponse;
 import org.elasticsearch.client.Response;
@@ -14,27 +17,37 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class ClusterTest {
 
+    private static SharedClient client;
     private static RestHighLevelClient highLevelClient;
     private static RestClient lowLevelClient;
 
     @BeforeClass
     public static void setUp() {
-        highLevelClient = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("localhost", 9200, "http")
-            )
-        );
+        client = TestCluster.client();
 
-        lowLevelClient = highLevelClient.getLowLevelClient();
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
     }
 
     @AfterClass
     public static void close() throws IOException {
-        highLevelClient.close();
+        client.close();
+    }
+
+    @Test
+    public void sharedClient() throws IOException {
+        //The test classes lease the same client, and closing a lease leaves it open for the others
+        try (SharedClient other = TestCluster.client()) {
+            assert other.highLevelClient() == highLevelClient;
+        }
+
+        assert highLevelClient.ping();
     }
 
     @Test
@@ -59,6 +72,37 @@ public class ClusterTest {
         assert info.isAvailable();
     }
 
+    @Test
+    public void routedNodes() throws IOException {
+        //Nothing listens on port 1, the router ejects it and the retries go to the live nodes
+        HttpHost unreachable = new HttpHost("127.0.0.1", 1);
+
+        List<HttpHost> seeds = new ArrayList<>(TestCluster.hosts());
+        seeds.add(unreachable);
+
+        NodeRouter router = NodeRouter.builder()
+            .selection(NodeRouter.Selection.LEAST_OUTSTANDING)
+            .sniffIntervalMillis(0)
+            .build();
+
+        try (RestHighLevelClient routedClient = ClientFactory.create(
+            ClientSettings.builder().hosts(seeds.toArray(new HttpHost[0])).build(), router)) {
+
+            for (int i = 0; i < 10; i++) {
+                assert routedClient.ping();
+            }
+
+            assert !router.isAlive(unreachable);
+
+            //The nodes listed by _nodes/http replace the seeds
+            router.sniff();
+
+            assert !router.getNodes().contains(unreachable);
+            assert !router.getNodes().isEmpty();
+            assert routedClient.info().isAvailable();
+        }
+    }
+
     private String readString(InputStream inputStream) {
         BufferedReader buffer = new BufferedReader(new InputStreamReader(inputStream));
 
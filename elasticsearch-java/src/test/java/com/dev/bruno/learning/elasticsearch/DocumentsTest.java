@@ -1,6 +1,22 @@
 package com.dev.bruno.learning.elasticsearch;
 
-import com.google.gson.Gson;
+import com.dev.bruno.learning.elasticsearch.batch.ReadBatcher;
+import com.dev.bruno.learning.elasticsearch.bulk.BulkPipeline;
+import com.dev.bruno.learning.elasticsearch.cache.RequestCoalescer;
+import com.dev.bruno.learning.elasticsearch.client.AsyncClient;
+import com.dev.bruno.learning.elasticsearch.client.BinaryClient;
+import com.dev.bruno.learning.elasticsearch.client.ClientFactory;
+import com.dev.bruno.learning.elasticsearch.client.ClientMetrics;
+import com.dev.bruno.learning.elasticsearch.client.ClientSettings;
+import com.dev.bruno.learning.elasticsearch.client.CompressingRestClient;
+import com.dev.bruno.learning.elasticsearch.client.NodeRouter;
+import com.dev.bruno.learning.elasticsearch.client.ShardRouting;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.client.VirtualThreads;
+import com.dev.bruno.learning.elasticsearch.mapping.DocumentMapper;
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import com.dev.bruno.learning.elasticsearch.response.Projection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
@@ -17,49 +33,59 @@ import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class DocumentsTest {
 
+    private static SharedClient client;
     private static RestHighLevelClient highLevelClient;
     private static RestClient lowLevelClient;
 
+    private static final DocumentMapper mapper = new DocumentMapper();
+
     @BeforeClass
     public static void setUp() {
-        highLevelClient = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("localhost", 9200, "http")
-            )
-        );
+        client = TestCluster.client();
 
-        lowLevelClient = highLevelClient.getLowLevelClient();
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
     }
 
     @AfterClass
     public static void close() throws IOException {
-        highLevelClient.close();
+        client.close();
     }
 
     @Test
@@ -96,11 +122,11 @@ public class DocumentsTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("PUT", "/customer2", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("acknowledged", "shards_acknowledged").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("acknowledged");
-        assert (Boolean) responseBody.get("shards_acknowledged");
+        assert responseBody.getBoolean("acknowledged");
+        assert responseBody.getBoolean("shards_acknowledged");
     }
 
     @Test
@@ -125,6 +151,97 @@ public class DocumentsTest {
         assert response.getStatusLine().getStatusCode() == 201;
     }
 
+    @Test
+    public void test2CreateCompressedDocument() throws IOException {
+        CompressingRestClient compressingClient = new CompressingRestClient(lowLevelClient);
+
+        //The body is gzipped on the way out and the response gzipped on the way back
+        HttpEntity entity = new NStringEntity("{ \"name\":\"Richard Roe\" }", ContentType.APPLICATION_JSON);
+        Response response = compressingClient.performRequest("PUT", "/customer2/_doc/2", Collections.emptyMap(), entity);
+
+        assert response.getStatusLine().getStatusCode() == 201;
+
+        response = compressingClient.performRequest("GET", "/customer2/_doc/2", Collections.emptyMap(), null);
+        JsonFields responseBody = JsonFieldReader.of("_source.name").read(response.getEntity().getContent());
+
+        assert response.getHeader("Content-Encoding").equals("gzip");
+        assert responseBody.getString("_source.name").equals("Richard Roe");
+    }
+
+    @Test
+    public void test2CreateTypedDocument() throws IOException {
+        Customer customer = new Customer();
+        customer.name = "Jane Doe";
+        customer.age = 32;
+        customer.tags = Arrays.asList("premium", "newsletter");
+
+        //Written field by field into the request, without a JSON String in between
+        IndexRequest request = mapper.indexRequest("customer", "_doc", "100", customer);
+        request.create(true);
+
+        assert highLevelClient.index(request).status().equals(RestStatus.CREATED);
+
+        Customer read = mapper.read(highLevelClient.get(new GetRequest("customer", "_doc", "100")), Customer.class);
+
+        assert read.name.equals("Jane Doe");
+        assert read.age == 32;
+        assert read.tags.equals(Arrays.asList("premium", "newsletter"));
+
+        assert mapper.read(highLevelClient.get(new GetRequest("customer", "_doc", "101")), Customer.class) == null;
+    }
+
+    @Test
+    public void test2CreateBinaryDocument() throws IOException {
+        Customer customer = new Customer();
+        customer.name = "Mary Major";
+        customer.age = 41;
+        customer.tags = Collections.singletonList("premium");
+
+        try (BinaryClient binaryClient = TestCluster.binaryClient(XContentType.SMILE)) {
+            DocumentMapper smileMapper = new DocumentMapper(XContentType.SMILE);
+
+            //Source, search body and responses are all SMILE, nothing is written or parsed as JSON
+            IndexRequest request = smileMapper.indexRequest("customer", "_doc", "102", customer);
+            request.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+
+            assert binaryClient.index(request).status().equals(RestStatus.CREATED);
+
+            SearchRequest searchRequest = new SearchRequest("customer");
+            searchRequest.source(new SearchSourceBuilder().query(QueryBuilders.matchQuery("name", "Mary Major")));
+
+            SearchResponse searchResponse = binaryClient.binarySearch(searchRequest);
+
+            assert searchResponse.getHits().getTotalHits() == 1;
+
+            Customer read = smileMapper.read(searchResponse.getHits().getAt(0), Customer.class);
+
+            assert read.age == 41;
+            assert read.tags.equals(Collections.singletonList("premium"));
+        }
+    }
+
+    @Test
+    public void test2CreateRoutedDocument() throws IOException {
+        NodeRouter router = NodeRouter.builder().sniffIntervalMillis(0).build();
+        ClientSettings settings = ClientSettings.builder().hosts(TestCluster.hosts().toArray(new HttpHost[0])).build();
+
+        try (RestHighLevelClient routedClient = ClientFactory.create(settings, router)) {
+            //The routing table names the nodes by their published address, the router must know them
+            router.sniff();
+
+            ShardRouting routing = ShardRouting.builder(routedClient, router).build();
+
+            IndexRequest request = new IndexRequest("customer", "_doc", "103");
+            request.source("{ \"name\":\"Jane Roe\" }", XContentType.JSON);
+
+            assert routing.index(request).status().equals(RestStatus.CREATED);
+            assert routing.get(new GetRequest("customer", "_doc", "103")).isExists();
+
+            //Both went straight to the node holding the shard of the document
+            assert routing.getRouted() == 2;
+        }
+    }
+
     @Test
     public void test3GetDocument() throws IOException {
         GetRequest request = new GetRequest("customer", "_doc", "1");
@@ -135,13 +252,114 @@ public class DocumentsTest {
         assert getResponse.getSourceAsMap().get("name").equals("John Doe");
 
         Response response = lowLevelClient.performRequest("GET", "/customer2/_doc/1");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("found", "_source.name").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("found");
+        assert responseBody.getBoolean("found");
+        assert responseBody.getString("_source.name").equals("John Doe");
+    }
+
+    @Test
+    public void test3GetProjectedDocument() throws IOException {
+        Projection projection = Projection.builder().source("name", "tags.*").build();
+
+        //Only name and tags travel back, and only they are decoded
+        GetResponse getResponse = highLevelClient.get(projection.apply(new GetRequest("customer", "_doc", "100")));
+        JsonFields fields = projection.read(getResponse);
+
+        assert fields.getString("name").equals("Jane Doe");
+        assert fields.getAll("tags.*").equals(Arrays.asList("premium", "newsletter"));
+        assert !getResponse.getSourceAsMap().containsKey("age");
+
+        //A field holding an array or an object is read as its JSON
+        Projection tags = Projection.builder().source("tags").build();
+        JsonFields tagFields = tags.read(highLevelClient.get(tags.apply(new GetRequest("customer", "_doc", "100"))));
 
-        Map<String, Object> customer = (Map<String, Object>) responseBody.get("_source");
-        assert customer.get("name").equals("John Doe");
+        assert tagFields.getString("tags").equals("[\"premium\",\"newsletter\"]");
+
+        //The document indexed as SMILE comes back as SMILE
+        JsonFields binaryFields = projection.read(highLevelClient.get(projection.apply(new GetRequest("customer", "_doc", "102"))));
+
+        assert binaryFields.getString("name").equals("Mary Major");
+        assert binaryFields.getAll("tags.*").equals(Collections.singletonList("premium"));
+    }
+
+    @Test
+    public void test3GetDocumentAsync() throws InterruptedException, ExecutionException {
+        AsyncClient asyncClient = new AsyncClient(highLevelClient);
+
+        //Every get is in flight at the same time without a thread waiting for it
+        List<CompletableFuture<GetResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            responses.add(asyncClient.get(new GetRequest("customer", "_doc", "1")));
+        }
+
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture[0])).get();
+
+        for (CompletableFuture<GetResponse> response : responses) {
+            assert response.get().getSourceAsMap().get("name").equals("John Doe");
+        }
+
+        //The blocking API on virtual threads when the runtime has them
+        ExecutorService executor = VirtualThreads.executor();
+        List<Future<GetResponse>> blockingResponses = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            blockingResponses.add(executor.submit(() -> highLevelClient.get(new GetRequest("customer", "_doc", "1"))));
+        }
+
+        for (Future<GetResponse> response : blockingResponses) {
+            assert response.get().isExists();
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void test3GetDocumentConcurrently() throws IOException, InterruptedException, ExecutionException {
+        RequestCoalescer coalescer = new RequestCoalescer(highLevelClient);
+
+        //The same document requested 64 times before the first response arrives, they all share one call
+        List<CompletableFuture<GetResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            responses.add(coalescer.getAsync(new GetRequest("customer", "_doc", "1")));
+        }
+
+        //Every caller has a future of its own, the one that gives up does not cancel the others
+        responses.get(0).cancel(true);
+
+        for (CompletableFuture<GetResponse> response : responses.subList(1, responses.size())) {
+            assert response.get().getSourceAsMap().get("name").equals("John Doe");
+        }
+
+        assert coalescer.getCalls() < 64;
+        assert coalescer.getCalls() + coalescer.getCoalesced() == 64;
+
+        //Once answered, the next request reaches the cluster again
+        assert coalescer.get(new GetRequest("customer", "_doc", "1")).isExists();
+        assert coalescer.getCoalesced() + coalescer.getCalls() == 65;
+    }
+
+    @Test
+    public void test3GetDocumentsInBatch() throws InterruptedException, ExecutionException {
+        List<CompletableFuture<GetResponse>> responses = new ArrayList<>();
+
+        //The window is long enough for every get to join the same batch, which goes out as one _mget
+        try (ReadBatcher batcher = ReadBatcher.builder(highLevelClient).maxDelay(TimeValue.timeValueSeconds(10)).build()) {
+            for (int i = 1; i <= 10; i++) {
+                responses.add(batcher.getAsync(new GetRequest("customer", "_doc", Integer.toString(i))));
+            }
+
+            batcher.flush();
+
+            assert responses.get(0).get().getSourceAsMap().get("name").equals("John Doe");
+
+            for (int i = 1; i < 10; i++) {
+                assert !responses.get(i).get().isExists();
+            }
+
+            assert batcher.getRequests() == 10;
+            assert batcher.getCalls() == 1;
+        }
     }
 
     @Test
@@ -178,13 +396,11 @@ public class DocumentsTest {
         assert getResponse.getSourceAsMap().get("name").equals("John Doe Update");
 
         Response response = lowLevelClient.performRequest("GET", "/customer2/_doc/1");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("found", "_source.name").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("found");
-
-        Map<String, Object> customer = (Map<String, Object>) responseBody.get("_source");
-        assert customer.get("name").equals("John Doe Update");
+        assert responseBody.getBoolean("found");
+        assert responseBody.getString("_source.name").equals("John Doe Update");
     }
 
     @Test
@@ -198,14 +414,14 @@ public class DocumentsTest {
         assert deleteResponse.status().equals(RestStatus.OK);
 
         Response response = lowLevelClient.performRequest("DELETE", "/customer2/_doc/1");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("result").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert responseBody.get("result").toString().equals("deleted");
+        assert responseBody.getString("result").equals("deleted");
     }
 
     @Test
-    public void test7BulkOperations() throws IOException {
+    public void test7BulkOperations() throws IOException, InterruptedException {
         IndexRequest indexRequest = new IndexRequest(
             "customer",
             "_doc",
@@ -223,14 +439,32 @@ public class DocumentsTest {
 
         DeleteRequest deleteRequest = new DeleteRequest("customer", "_doc", "2");
 
-        BulkRequest request = new BulkRequest();
-        request.add(indexRequest);
-        request.add(updateRequest);
-        request.add(deleteRequest);
-
-        BulkResponse bulkResponse = highLevelClient.bulk(request);
-        assert bulkResponse.status().equals(RestStatus.OK);
-        assert !bulkResponse.hasFailures();
+        AtomicReference<BulkResponse> bulkResponse = new AtomicReference<>();
+        AtomicReference<Exception> bulkFailure = new AtomicReference<>();
+
+        //The pipeline sends the bulks asynchronously, the three actions fit in a single one
+        BulkPipeline pipeline = BulkPipeline.builder(highLevelClient, new BulkPipeline.Listener() {
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                bulkResponse.set(response);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Exception failure) {
+                //Thrown here it would be lost on the thread of the client
+                bulkFailure.set(failure);
+            }
+        }).concurrentRequests(2).build();
+
+        pipeline.add(indexRequest);
+        pipeline.add(updateRequest);
+        pipeline.add(deleteRequest);
+
+        assert pipeline.awaitClose(30, TimeUnit.SECONDS);
+        assert bulkFailure.get() == null : bulkFailure.get();
+        assert bulkResponse.get().status().equals(RestStatus.OK);
+        assert !bulkResponse.get().hasFailures();
+        assert bulkResponse.get().getItems()[2].getItemId() == 2;
 
         String lowLevelRequestBody = "{\"index\":{\"_id\":\"1\"}}\n" +
             "{\"name\": \"John Doe\" }\n" +
@@ -242,10 +476,43 @@ public class DocumentsTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("POST", "/customer2/_doc/_bulk", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("errors").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert !((Boolean) responseBody.get("errors"));
+        assert !responseBody.getBoolean("errors");
+    }
+
+    @Test
+    public void test7MeteredOperations() throws IOException {
+        ClientMetrics metrics = new ClientMetrics();
+        ClientSettings settings = ClientSettings.builder().hosts(TestCluster.hosts().toArray(new HttpHost[0])).build();
+
+        try (RestHighLevelClient meteredClient = ClientFactory.create(settings, metrics)) {
+            IndexRequest indexRequest = new IndexRequest("customer", "_doc", "104");
+            indexRequest.source("{ \"name\":\"Richard Roe\" }", XContentType.JSON);
+
+            meteredClient.index(indexRequest);
+            meteredClient.get(new GetRequest("customer", "_doc", "104"));
+
+            //The update of a missing document fails its item, not the bulk
+            BulkRequest bulkRequest = new BulkRequest();
+            bulkRequest.add(new DeleteRequest("customer", "_doc", "104"));
+            bulkRequest.add(new UpdateRequest("customer", "_doc", "105").doc("{ \"name\":\"Richard Roe\" }", XContentType.JSON));
+
+            assert meteredClient.bulk(bulkRequest).hasFailures();
+        }
+
+        ClientMetrics.Snapshot snapshot = metrics.snapshot();
+        ClientMetrics.OperationSnapshot index = snapshot.getOperation("index", "customer");
+
+        assert index.getCount() == 1;
+        assert index.getRequestBytes() > 0 && index.getResponseBytes() > 0;
+        assert snapshot.getOperation("get", "customer").getCount() == 1;
+        assert snapshot.getOperation("bulk", "_all").getBulkItemFailures() == 1;
+        assert snapshot.getLeaseWait().getTotalCount() == 3;
+
+        //Every snapshot starts a new interval
+        assert metrics.snapshot().getOperation("index", "customer").getCount() == 0;
     }
 
     @Test
@@ -258,23 +525,16 @@ public class DocumentsTest {
         assert deleteIndexResponse.isAcknowledged();
 
         Response response = lowLevelClient.performRequest("DELETE", "/customer2");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("acknowledged").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("acknowledged");
+        assert responseBody.getBoolean("acknowledged");
     }
 
-    private String readString(InputStream inputStream) {
-        BufferedReader buffer = new BufferedReader(new InputStreamReader(inputStream));
-
-        return buffer.lines().collect(Collectors.joining("\n"));
-    }
-
-    private Map<String, Object> readBody(InputStream inputStream) {
-        String body = readString(inputStream);
-
-        Gson gson = new Gson();
+    public static class Customer {
 
-        return gson.fromJson(body, HashMap.class);
+        private String name;
+        private int age;
+        private List<String> tags;
     }
-}
\ No newline at end of file
+}
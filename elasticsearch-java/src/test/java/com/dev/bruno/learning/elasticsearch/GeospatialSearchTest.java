@@ -1,9 +1,16 @@
 package com.dev.bruno.learning.elasticsearch;
 
-import com.google.gson.Gson;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.geo.GeoSearch;
+import com.dev.bruno.learning.elasticsearch.geo.GeoViewport;
+import com.dev.bruno.learning.elasticsearch.geo.ShapeSimplifier;
+import com.dev.bruno.learning.elasticsearch.geo.TileCache;
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
@@ -21,6 +28,7 @@ import org.elasticsearch.common.geo.ShapeRelation;
 import org.elasticsearch.common.geo.builders.EnvelopeBuilder;
 import org.elasticsearch.common.geo.builders.ShapeBuilders;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestStatus;
@@ -33,36 +41,32 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class GeospatialSearchTest {
 
+    private static SharedClient client;
     private static RestHighLevelClient highLevelClient;
     private static RestClient lowLevelClient;
 
     @BeforeClass
     public static void setUp() {
-        highLevelClient = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("localhost", 9200, "http")
-            )
-        );
+        client = TestCluster.client();
 
-        lowLevelClient = highLevelClient.getLowLevelClient();
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
     }
 
     @AfterClass
     public static void close() throws IOException {
-        highLevelClient.close();
+        client.close();
     }
 
     @Test
@@ -73,7 +77,8 @@ public class GeospatialSearchTest {
             .put("index.number_of_replicas", 0)
         );
 
-        request.mapping("_doc", "location", "type=geo_shape");
+        //The same place as a point too, for the viewport queries and the clusters
+        request.mapping("_doc", "location", "type=geo_shape", "point", "type=geo_point");
 
         CreateIndexResponse createIndexResponse = highLevelClient.indices().create(request);
 
@@ -82,7 +87,7 @@ public class GeospatialSearchTest {
     }
 
     @Test
-    public void test2CreateDocument() throws IOException, InterruptedException {
+    public void test2CreateDocument() throws IOException {
         IndexRequest request = new IndexRequest(
                 "example",
                 "_doc",
@@ -93,7 +98,8 @@ public class GeospatialSearchTest {
                 "    \"location\": {\n" +
                 "        \"type\": \"point\",\n" +
                 "        \"coordinates\": [13.400544, 52.530286]\n" +
-                "    }\n" +
+                "    },\n" +
+                "    \"point\": [13.400544, 52.530286]\n" +
                 "}";
 
         request.source(requestBody, XContentType.JSON);
@@ -103,8 +109,8 @@ public class GeospatialSearchTest {
 
         assert indexResponse.status().equals(RestStatus.CREATED);
 
-        //Bulk is a async request
-        Thread.sleep(1000L);
+        //Documents are searchable only after a refresh, this one returns as soon as it is done
+        new IndexVisibility(lowLevelClient).refresh("example");
     }
 
     @Test
@@ -150,36 +156,136 @@ public class GeospatialSearchTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("GET", "/example/_search", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("hits.total").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
+        assert responseBody.getLong("hits.total") == 1;
+    }
+
+    @Test
+    public void test4ViewportQuery() throws IOException {
+        GeoViewport berlin = new GeoViewport(13.0, 52.0, 14.0, 53.0, 9);
+        GeoViewport hamburg = new GeoViewport(9.5, 53.3, 10.5, 53.8, 9);
 
-        Map<String, Object> hits = (Map<String, Object>) responseBody.get("hits");
-        Double total = (Double) hits.get("total");
-        assert total == 1;
+        GeoSearch points = GeoSearch.builder(highLevelClient, "example", "point").build();
+        GeoSearch shapes = GeoSearch.builder(highLevelClient, "example", "location").build();
+
+        assert points.fieldType() == GeoSearch.FieldType.GEO_POINT;
+        assert shapes.fieldType() == GeoSearch.FieldType.GEO_SHAPE;
+
+        //geo_bounding_box on the point, geo_shape intersecting an envelope on the shape
+        assert points.search(berlin, null, 10).getHits().getTotalHits() == 1;
+        assert shapes.search(berlin, null, 10).getHits().getTotalHits() == 1;
+        assert points.search(hamburg, null, 10).getHits().getTotalHits() == 0;
+        assert shapes.search(hamburg, null, 10).getHits().getTotalHits() == 0;
     }
 
     @Test
-    public void test7DeleteIndex() throws IOException {
-        DeleteIndexRequest request = new DeleteIndexRequest("example");
+    public void test5ViewportClusters() throws IOException {
+        GeoSearch points = GeoSearch.builder(highLevelClient, "example", "point").build();
 
-        //It is possible to do in a async request, but for test it is not necessary.
-        DeleteIndexResponse deleteIndexResponse = highLevelClient.indices().delete(request);
+        //The whole world in a single tile, the tile of Berlin at a street level
+        for (GeoViewport viewport : new GeoViewport[]{GeoViewport.ofTile(0, 0, 0), GeoViewport.ofTile(15, 17603, 10744)}) {
+            List<GeoSearch.Cluster> clusters = points.clusters(viewport, null);
 
-        assert deleteIndexResponse.isAcknowledged();
+            assert clusters.size() == 1;
+            assert clusters.get(0).getCount() == 1;
+            assert Math.abs(clusters.get(0).getCentroid().getLon() - 13.400544) < 0.0001;
+            assert Math.abs(clusters.get(0).getCentroid().getLat() - 52.530286) < 0.0001;
+        }
+
+        //Cells get smaller as the zoom grows
+        assert GeoViewport.ofTile(0, 0, 0).geohashPrecision(64) < GeoViewport.ofTile(15, 17603, 10744).geohashPrecision(64);
+    }
+
+    @Test
+    public void test6PolygonQuery() throws IOException {
+        //A circle of about 20km around Berlin drawn with far more points than a map at zoom 8 can show
+        List<Coordinate> circle = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            double angle = 2 * Math.PI * i / 1000;
+            circle.add(new Coordinate(13.4 + 0.3 * Math.cos(angle), 52.5 + 0.2 * Math.sin(angle)));
+        }
+        circle.add(circle.get(0));
+
+        GeoViewport viewport = GeoViewport.ofTile(8, 137, 83);
+
+        assert ShapeSimplifier.simplifyRing(circle, viewport.pixelDegrees()).size() < 100;
+
+        //Far below a pixel the circle is still a polygon
+        assert ShapeSimplifier.simplifyRing(circle, 10).size() >= 4;
+
+        //Dropping the dip under the slot would make the bottom edge cross the slot, the tolerance is lowered instead
+        List<Coordinate> slot = new ArrayList<>();
+        for (double[] point : new double[][]{{0, 0}, {5, -0.4}, {10, 0}, {10, 10}, {5.2, 10}, {5, -0.2}, {4.8, 10}, {0, 10}, {0, 0}}) {
+            slot.add(new Coordinate(point[0], point[1]));
+        }
+
+        List<Coordinate> simplifiedSlot = ShapeSimplifier.simplifyRing(slot, 1);
+        assert new GeometryFactory().createLinearRing(simplifiedSlot.toArray(new Coordinate[0])).isSimple();
+
+        for (String field : new String[]{"point", "location"}) {
+            GeoSearch search = GeoSearch.builder(highLevelClient, "example", field).build();
+            SearchRequest request = new SearchRequest("example")
+                .source(new SearchSourceBuilder().query(search.polygonQuery(circle, viewport)));
+
+            assert highLevelClient.search(request).getHits().getTotalHits() == 1;
+        }
     }
 
-    private String readString(InputStream inputStream) {
-        BufferedReader buffer = new BufferedReader(new InputStreamReader(inputStream));
+    @Test
+    public void test7TileCache() throws IOException {
+        GeoSearch shapes = GeoSearch.builder(highLevelClient, "example", "location").build();
+
+        //Checked before every search, so the refresh below is seen at once
+        TileCache cache = TileCache.builder(shapes).generationCheckInterval(TimeValue.ZERO).build();
 
-        return buffer.lines().collect(Collectors.joining("\n"));
+        TileCache.Result first = cache.search(new GeoViewport(13.3, 52.45, 13.5, 52.6, 10));
+
+        assert first.getTiles() > 0;
+        assert first.getFetchedTiles() == first.getTiles();
+        assert first.getHits().size() == 1;
+
+        //Panning a little stays on the same tiles
+        TileCache.Result panned = cache.search(new GeoViewport(13.32, 52.46, 13.52, 52.61, 10));
+
+        assert panned.getFetchedTiles() == 0;
+        assert panned.getHits().size() == 1;
+
+        //Zooming in is served by the tiles of zoom 10
+        TileCache.Result zoomed = cache.search(new GeoViewport(13.38, 52.5, 13.42, 52.55, 11));
+
+        assert zoomed.getFetchedTiles() == 0;
+        assert zoomed.getHits().size() == 1;
+        assert cache.getMisses() == first.getTiles();
+        assert cache.bytes() > 0;
+
+        IndexRequest request = new IndexRequest("example", "_doc", "2").source("{\n" +
+                "    \"name\": \"Tiergarten, Berlin, Germany\",\n" +
+                "    \"location\": {\n" +
+                "        \"type\": \"point\",\n" +
+                "        \"coordinates\": [13.350, 52.514]\n" +
+                "    },\n" +
+                "    \"point\": [13.350, 52.514]\n" +
+                "}", XContentType.JSON);
+
+        highLevelClient.index(request);
+        new IndexVisibility(lowLevelClient).refresh("example");
+
+        //The refresh made the write searchable, the cached tiles are stale
+        TileCache.Result refreshed = cache.search(new GeoViewport(13.3, 52.45, 13.5, 52.6, 10));
+
+        assert refreshed.getFetchedTiles() == refreshed.getTiles();
+        assert refreshed.getHits().size() == 2;
     }
 
-    private Map<String, Object> readBody(InputStream inputStream) {
-        String body = readString(inputStream);
+    @Test
+    public void test8DeleteIndex() throws IOException {
+        DeleteIndexRequest request = new DeleteIndexRequest("example");
 
-        Gson gson = new Gson();
+        //It is possible to do in a async request, but for test it is not necessary.
+        DeleteIndexResponse deleteIndexResponse = highLevelClient.indices().delete(request);
 
-        return gson.fromJson(body, HashMap.class);
+        assert deleteIndexResponse.isAcknowledged();
     }
 }
\ No newline at end of file
@@ -1,53 +1,60 @@
 package com.dev.bruno.learning.elasticsearch;
 
-import com.google.gson.Gson;
+import com.dev.bruno.learning.elasticsearch.bulk.BulkIngester;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.index.BulkLoad;
+import com.dev.bruno.learning.elasticsearch.index.IndexVisibility;
+import com.dev.bruno.learning.elasticsearch.index.Reindexer;
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class IndicesTest {
 
+    private static SharedClient client;
     private static RestHighLevelClient highLevelClient;
     private static RestClient lowLevelClient;
 
     @BeforeClass
     public static void setUp() {
-        highLevelClient = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("localhost", 9200, "http")
-            )
-        );
+        client = TestCluster.client();
 
-        lowLevelClient = highLevelClient.getLowLevelClient();
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
     }
 
     @AfterClass
     public static void close() throws IOException {
-        highLevelClient.close();
+        client.close();
     }
 
     @Test
@@ -84,11 +91,47 @@ public class IndicesTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("PUT", "/customer2", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("acknowledged", "shards_acknowledged").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("acknowledged");
-        assert (Boolean) responseBody.get("shards_acknowledged");
+        assert responseBody.getBoolean("acknowledged");
+        assert responseBody.getBoolean("shards_acknowledged");
+    }
+
+    @Test
+    public void test2BulkLoad() throws IOException {
+        String body = "{\"index\":{\"_id\":\"1\"}}\n" +
+            "{\"name\": \"John Doe\" }\n" +
+            "{\"index\":{\"_id\":\"2\"}}\n" +
+            "{\"name\": \"Jane Doe\" }\n" +
+            "{\"update\":{\"_id\":\"3\"}}\n" +
+            "{\"doc\": {\"name\": \"Nobody\" } }\n";
+
+        BulkIngester ingester = BulkIngester.builder(lowLevelClient, "/customer2/_doc/_bulk").build();
+
+        //No refresh while loading, the documents are searchable once the load returns
+        BulkIngester.Result result = BulkLoad.builder(lowLevelClient, "customer2")
+            .asyncTranslog(true)
+            .maxSegments(1)
+            .build()
+            .run(() -> {
+                assert "-1".equals(setting("customer2", "index.refresh_interval"));
+                assert "async".equals(setting("customer2", "index.translog.durability"));
+
+                return ingester.ingest(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+            });
+
+        //The update of a missing document fails alone, the other items are indexed
+        assert result.getActions() == 3;
+        assert result.getFailedItems() == 1;
+
+        Response response = lowLevelClient.performRequest("GET", "/customer2/_count");
+        assert JsonFieldReader.of("count").read(response.getEntity().getContent()).getLong("count") == 2;
+
+        //The settings are the ones of the index again
+        assert setting("customer2", "index.refresh_interval") == null;
+        assert setting("customer2", "index.translog.durability") == null;
+        assert "0".equals(setting("customer2", "index.number_of_replicas"));
     }
 
     @Test
@@ -100,6 +143,124 @@ public class IndicesTest {
         assert response.getStatusLine().getStatusCode() == 200;
     }
 
+    @Test
+    public void test2ReindexWithoutDowntime() throws IOException, InterruptedException {
+        String body = "{\"index\":{\"_id\":\"1\"}}\n" +
+            "{\"name\": \"John Doe\", \"updated\": " + System.currentTimeMillis() + " }\n" +
+            "{\"index\":{\"_id\":\"2\"}}\n" +
+            "{\"name\": \"Jane Doe\", \"updated\": " + System.currentTimeMillis() + " }\n";
+
+        BulkIngester.builder(lowLevelClient, "/customer3/_doc/_bulk")
+            .refreshOnCompletion(true)
+            .build()
+            .ingest(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        String indexBody = "{\n" +
+            "    \"settings\" : { \"number_of_shards\" : 2, \"number_of_replicas\" : 0 },\n" +
+            "    \"mappings\" : {\n" +
+            "        \"_doc\" : {\n" +
+            "            \"properties\" : {\n" +
+            "                \"name\" : { \"type\" : \"keyword\" },\n" +
+            "                \"updated\" : { \"type\" : \"date\" }\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "}";
+
+        //The index is deleted when it becomes an alias, which has to be allowed
+        try {
+            Reindexer.builder(highLevelClient, "customer3", indexBody).build().reindex();
+            assert false;
+        } catch (IllegalStateException e) {
+            assert lowLevelClient.performRequest("HEAD", "/customer3_v1").getStatusLine().getStatusCode() == 404;
+        }
+
+        //The index becomes an alias of its first version, the documents copied by the client
+        Reindexer.Result first = Reindexer.builder(highLevelClient, "customer3", indexBody)
+            .mode(Reindexer.Mode.CLIENT)
+            .deletePrevious(true)
+            .build()
+            .reindex();
+
+        assert first.getPreviousIndex().equals("customer3");
+        assert first.getIndex().equals("customer3_v1");
+        assert first.getCopied() == 2;
+        //Without a changedSinceField the last pass, under the write block, finds the same versions again
+        assert first.getPasses() == 1;
+        assert first.getCaughtUp() == 0;
+
+        //The catch-up passes of a _reindex task find the same versions, nothing is copied again
+        Reindexer.Result second = Reindexer.builder(highLevelClient, "customer3", indexBody)
+            .mode(Reindexer.Mode.SERVER)
+            .changedSinceField("updated", 60_000)
+            .deletePrevious(true)
+            .build()
+            .reindex();
+
+        assert second.getPreviousIndex().equals("customer3_v1");
+        assert second.getIndex().equals("customer3_v2");
+        assert second.getCopied() == 2;
+        assert second.getCaughtUp() == 0;
+        assert lowLevelClient.performRequest("HEAD", "/customer3_v1").getStatusLine().getStatusCode() == 404;
+
+        Response response = lowLevelClient.performRequest("GET", "/_alias/customer3");
+        assert JsonFieldReader.of("*").read(response.getEntity().getContent()).asMap().keySet().equals(Collections.singleton("customer3_v2"));
+
+        //The applications keep writing through the alias while it moves to the next version
+        Map<String, Integer> acknowledged = new ConcurrentHashMap<>();
+        AtomicBoolean reindexing = new AtomicBoolean(true);
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; reindexing.get(); i++) {
+                String id = "w" + (i % 5);
+                IndexRequest request = new IndexRequest("customer3", "_doc", id)
+                    .source("{\"name\": \"Writer\", \"value\": " + i + ", \"updated\": " + System.currentTimeMillis() + "}", XContentType.JSON);
+
+                try {
+                    highLevelClient.index(request);
+                    acknowledged.put(id, i);
+                } catch (IOException | ElasticsearchException e) {
+                    //Blocked during the last pass
+                }
+            }
+        });
+        writer.start();
+
+        while (acknowledged.size() < 5) {
+            Thread.sleep(10);
+        }
+
+        Reindexer.Result third;
+        try {
+            third = Reindexer.builder(highLevelClient, "customer3", indexBody)
+                .mode(Reindexer.Mode.CLIENT)
+                .requestsPerSecond(10)
+                .changedSinceField("updated", 1_000)
+                .deletePrevious(true)
+                .build()
+                .reindex();
+        } finally {
+            reindexing.set(false);
+            writer.join();
+        }
+
+        assert third.getIndex().equals("customer3_v3");
+
+        //No copy overwrote a write acknowledged by either index
+        for (Map.Entry<String, Integer> write : acknowledged.entrySet()) {
+            GetResponse getResponse = highLevelClient.get(new GetRequest("customer3", "_doc", write.getKey()));
+            assert write.getValue().equals(getResponse.getSource().get("value")) : write + " read as " + getResponse.getSource();
+        }
+
+        //The last writes went to the new index after its last refresh
+        new IndexVisibility(lowLevelClient).refresh("customer3");
+
+        response = lowLevelClient.performRequest("GET", "/customer3/_count");
+        assert JsonFieldReader.of("count").read(response.getEntity().getContent()).getLong("count") == 2 + acknowledged.size();
+
+        lowLevelClient.performRequest("DELETE", "/customer3_v3");
+    }
+
     @Test
     public void test3DeleteIndex() throws IOException {
         DeleteIndexRequest request = new DeleteIndexRequest("customer");
@@ -110,23 +271,19 @@ public class IndicesTest {
         assert deleteIndexResponse.isAcknowledged();
 
         Response response = lowLevelClient.performRequest("DELETE", "/customer2");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("acknowledged").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert (Boolean) responseBody.get("acknowledged");
-    }
-
-    private String readString(InputStream inputStream) {
-        BufferedReader buffer = new BufferedReader(new InputStreamReader(inputStream));
-
-        return buffer.lines().collect(Collectors.joining("\n"));
+        assert responseBody.getBoolean("acknowledged");
     }
 
-    private Map<String, Object> readBody(InputStream inputStream) {
-        String body = readString(inputStream);
+    private String setting(String index, String name) throws IOException {
+        String path = index + ".settings." + name;
 
-        Gson gson = new Gson();
+        Response response = lowLevelClient.performRequest("GET", "/" + index + "/_settings/" + name);
+        JsonFields settings = JsonFieldReader.of(path).read(response.getEntity().getContent());
 
-        return gson.fromJson(body, HashMap.class);
+        //Settings left to their default are not listed, nor is the index when none of the names is set
+        return settings.contains(path) ? settings.getString(path) : null;
     }
 }
@@ -1,8 +1,18 @@
 package com.dev.bruno.learning.elasticsearch;
 
-import com.google.gson.Gson;
+import com.dev.bruno.learning.elasticsearch.batch.ReadBatcher;
+import com.dev.bruno.learning.elasticsearch.bulk.BulkIngester;
+import com.dev.bruno.learning.elasticsearch.bulk.BulkSubscriber;
+import com.dev.bruno.learning.elasticsearch.cache.QueryCache;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.index.BulkLoad;
+import com.dev.bruno.learning.elasticsearch.response.JsonFieldReader;
+import com.dev.bruno.learning.elasticsearch.response.JsonFields;
+import com.dev.bruno.learning.elasticsearch.response.Projection;
+import com.dev.bruno.learning.elasticsearch.search.HitIterator;
+import com.dev.bruno.learning.elasticsearch.search.HitPublisher;
+import com.dev.bruno.learning.elasticsearch.search.SlicedScan;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
@@ -19,54 +29,56 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class SearchTest {
 
+    private static SharedClient client;
     private static RestHighLevelClient highLevelClient;
     private static RestClient lowLevelClient;
 
     @BeforeClass
     public static void setUp() {
-        highLevelClient = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("localhost", 9200, "http")
-            )
-        );
+        client = TestCluster.client();
 
-        lowLevelClient = highLevelClient.getLowLevelClient();
+        highLevelClient = client.highLevelClient();
+        lowLevelClient = client.lowLevelClient();
     }
 
     @AfterClass
     public static void close() throws IOException {
-        highLevelClient.close();
+        client.close();
     }
 
     @Test
@@ -84,34 +96,123 @@ public class SearchTest {
     }
 
     @Test
-    public void test2CreateDocuments() throws IOException, InterruptedException {
-        InputStream in = new URL( "https://raw.githubusercontent.com/elastic/elasticsearch/master/docs/src/test/resources/accounts.json" ).openStream();
-
-        String lowLevelRequestBody = readString(in) + "\n";
-
-        HttpEntity entity = new NStringEntity(lowLevelRequestBody, ContentType.APPLICATION_JSON);
-        Map<String, String> params = Collections.singletonMap("pretty", "true");
+    public void test2CreateDocuments() throws IOException {
+        InputStream in = TestCluster.accounts();
+
+        //The file is streamed in small batches instead of being loaded in a single String
+        BulkIngester ingester = BulkIngester.builder(lowLevelClient, "/bank/_doc/_bulk")
+            .maxActions(250)
+            .maxInFlight(2)
+            .build();
+
+        //Loaded without refreshes nor replicas, the load refreshes the index once done
+        BulkIngester.Result result;
+        try (InputStream stream = in) {
+            result = BulkLoad.builder(lowLevelClient, "bank")
+                .maxSegments(1)
+                .build()
+                .run(() -> ingester.ingest(stream));
+        }
+
+        assert result.getActions() == 1000;
+        assert result.getBatches() == 4;
+        assert !result.hasFailures();
+    }
 
-        Response response = lowLevelClient.performRequest("POST", "/bank/_doc/_bulk", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+    @Test
+    public void test3FirstSearch() throws IOException {
+        Response response = lowLevelClient.performRequest("GET", "/bank/_search?q=*&sort=account_number:asc&pretty");
+        JsonFields responseBody = JsonFieldReader.of("hits.total").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-        assert !((Boolean) responseBody.get("errors"));
+        assert responseBody.getLong("hits.total") == 1000;
+    }
 
-        //Bulk is a async request
-        Thread.sleep(5000L);
+    @Test
+    public void test3IterateAllHits() throws IOException {
+        SearchRequest searchRequest = new SearchRequest("bank");
+        searchRequest.source(new SearchSourceBuilder().sort("account_number", SortOrder.ASC));
+
+        //Sorted requests are paged with search_after, the next page is fetched while this one is consumed
+        long count = 0;
+        long previous = -1;
+        try (HitIterator hits = HitIterator.of(highLevelClient, searchRequest, 100)) {
+            while (hits.hasNext()) {
+                long accountNumber = ((Number) hits.next().getSourceAsMap().get("account_number")).longValue();
+
+                assert accountNumber > previous;
+                previous = accountNumber;
+                count++;
+            }
+        }
+
+        assert count == 1000;
+
+        //Unsorted requests fall back to a scroll in _doc order
+        try (Stream<SearchHit> hits = HitIterator.of(highLevelClient, new SearchRequest("bank"), 300).stream()) {
+            assert hits.count() == 1000;
+
+            //The scroll was cleared with the last page, before the stream is closed
+            assert openSearchContexts() == 0;
+        }
     }
 
     @Test
-    public void test3FirstSearch() throws IOException {
-        Response response = lowLevelClient.performRequest("GET", "/bank/_search?q=*&sort=account_number:asc&pretty");
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+    public void test3PublishHits() throws IOException, InterruptedException, ExecutionException {
+        //Hits flow from a scroll to bulks only as fast as the bulks are answered
+        BulkSubscriber<SearchHit> subscriber = BulkSubscriber.<SearchHit>builder(highLevelClient,
+            hit -> new IndexRequest("bank_copy", "_doc", hit.getId()).source(hit.getSourceRef(), XContentType.JSON))
+            .bulkActions(300)
+            .concurrentRequests(2)
+            .refreshOnCompletion(true)
+            .build();
 
-        assert response.getStatusLine().getStatusCode() == 200;
+        HitPublisher.of(highLevelClient, new SearchRequest("bank"), 100).subscribe(subscriber);
 
-        Map<String, Object> hits = (Map<String, Object>) responseBody.get("hits");
-        Double total = (Double) hits.get("total");
-        assert total == 1000;
+        BulkSubscriber.Result result = subscriber.completion().get();
+
+        assert result.getActions() == 1000;
+        assert result.getBatches() == 4;
+        assert !result.hasFailures();
+        assert highLevelClient.search(new SearchRequest("bank_copy")).getHits().getTotalHits() == 1000;
+
+        assert highLevelClient.indices().delete(new DeleteIndexRequest("bank_copy")).isAcknowledged();
+    }
+
+    @Test
+    public void test3ScanSlices() {
+        //The bank index has 5 shards, one slice per shard
+        SearchRequest unsortedRequest = new SearchRequest("bank");
+        SlicedScan scan = SlicedScan.builder(highLevelClient, unsortedRequest)
+            .slices(5)
+            .pageSize(100)
+            .build();
+
+        try (Stream<SearchHit> hits = scan.stream()) {
+            assert hits.count() == 1000;
+        }
+
+        //The _doc sort is added to a copy of the request
+        assert unsortedRequest.source().sorts() == null;
+
+        SearchRequest searchRequest = new SearchRequest("bank");
+        searchRequest.source(new SearchSourceBuilder().sort("account_number", SortOrder.DESC));
+
+        SlicedScan orderedScan = SlicedScan.builder(highLevelClient, searchRequest)
+            .slices(5)
+            .pageSize(100)
+            .ordered(true)
+            .build();
+
+        try (Stream<SearchHit> hits = orderedScan.stream()) {
+            List<Long> accountNumbers = hits
+                .map(hit -> ((Number) hit.getSourceAsMap().get("account_number")).longValue())
+                .collect(Collectors.toList());
+
+            assert accountNumbers.size() == 1000;
+            assert accountNumbers.get(0) == 999;
+            assert accountNumbers.get(999) == 0;
+        }
     }
 
     @Test
@@ -147,13 +248,30 @@ public class SearchTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("GET", "/bank/_search", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("hits.total").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
+        assert responseBody.getLong("hits.total") == 43;
+    }
+
+    @Test
+    public void test4ProjectedSearch() throws IOException {
+        Projection projection = Projection.builder().source("balance").docValues("age").build();
+
+        SearchRequest searchRequest = new SearchRequest("bank");
+        searchRequest.source(new SearchSourceBuilder().query(QueryBuilders.rangeQuery("balance").gte(20000).lte(30000)));
+
+        SearchResponse searchResponse = highLevelClient.search(projection.apply(searchRequest));
+
+        assert searchResponse.getHits().getHits().length == 10;
 
-        Map<String, Object> hits = (Map<String, Object>) responseBody.get("hits");
-        Double total = (Double) hits.get("total");
-        assert total == 43;
+        for (SearchHit hit : searchResponse.getHits()) {
+            JsonFields fields = projection.read(hit);
+
+            assert fields.getLong("balance") >= 20000 && fields.getLong("balance") <= 30000;
+            assert fields.getInt("age") > 0;
+            assert !hit.getSourceAsMap().containsKey("firstname");
+        }
     }
 
     @Test
@@ -192,17 +310,41 @@ public class SearchTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("GET", "/bank/_search", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        JsonFields responseBody = JsonFieldReader.of("hits.total").read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
-
-        Map<String, Object> hits = (Map<String, Object>) responseBody.get("hits");
-        Double total = (Double) hits.get("total");
-        assert total == 217;
+        assert responseBody.getLong("hits.total") == 217;
     }
 
 
 
+    @Test
+    public void test5SearchesInBatch() throws IOException, InterruptedException, ExecutionException {
+        SearchRequest queryLanguage = new SearchRequest("bank").source(new SearchSourceBuilder().query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("age", "40"))
+                .mustNot(QueryBuilders.matchQuery("state", "ID"))
+        ));
+
+        SearchRequest filtering = new SearchRequest("bank").source(new SearchSourceBuilder().query(
+            QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchAllQuery())
+                .filter(QueryBuilders.rangeQuery("balance").gte(20000).lte(30000))
+        ));
+
+        //Both searches join the same window and go out as one _msearch
+        try (ReadBatcher batcher = ReadBatcher.builder(highLevelClient).maxDelay(TimeValue.timeValueSeconds(10)).build()) {
+            CompletableFuture<SearchResponse> first = batcher.searchAsync(queryLanguage);
+            CompletableFuture<SearchResponse> second = batcher.searchAsync(filtering);
+
+            batcher.flush();
+
+            assert first.get().getHits().getTotalHits() == 43;
+            assert second.get().getHits().getTotalHits() == 217;
+            assert batcher.getCalls() == 1;
+        }
+    }
+
     @Test
     public void test6Aggregations() throws IOException {
         SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
@@ -234,16 +376,51 @@ public class SearchTest {
         Map<String, String> params = Collections.singletonMap("pretty", "true");
 
         Response response = lowLevelClient.performRequest("GET", "/bank/_search", params, entity);
-        Map<String, Object> responseBody = readBody(response.getEntity().getContent());
+        //Only the two counters are read, the buckets are skipped while parsing
+        JsonFields responseBody = JsonFieldReader.of(
+            "aggregations.group_by_state.doc_count_error_upper_bound",
+            "aggregations.group_by_state.sum_other_doc_count"
+        ).read(response.getEntity().getContent());
 
         assert response.getStatusLine().getStatusCode() == 200;
+        assert responseBody.getLong("aggregations.group_by_state.doc_count_error_upper_bound") == 20;
+        assert responseBody.getLong("aggregations.group_by_state.sum_other_doc_count") == 770;
+    }
 
-        Map<String, Object> aggregations = (Map<String, Object>) responseBody.get("aggregations");
-        Map<String, Object> byStates = (Map<String, Object>) aggregations.get("group_by_state");
-        Double docCountErrorUpperBound = (Double) byStates.get("doc_count_error_upper_bound");
-        Double sumOtherDocCount = (Double) byStates.get("sum_other_doc_count");
-        assert docCountErrorUpperBound == 20;
-        assert sumOtherDocCount == 770;
+    @Test
+    public void test6CachedQueries() throws IOException {
+        QueryCache cache = QueryCache.builder(highLevelClient).build();
+
+        //Equal queries built twice share the same entry, only the first one reaches the cluster
+        for (int i = 0; i < 3; i++) {
+            SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+            sourceBuilder.size(0)
+                .aggregation(AggregationBuilders.terms("group_by_state").field("state.keyword"));
+
+            SearchResponse searchResponse = cache.search(new SearchRequest("bank").source(sourceBuilder));
+            ParsedStringTerms groupByState = (ParsedStringTerms) searchResponse.getAggregations().get("group_by_state");
+
+            assert groupByState.getSumOfOtherDocCounts() == 770;
+        }
+
+        assert cache.getMisses() == 1;
+        assert cache.getHits() == 2;
+
+        IndexRequest indexRequest = new IndexRequest("bank", "_doc", "1000");
+        indexRequest.source("{ \"account_number\": 1000, \"state\": \"ID\" }", XContentType.JSON);
+        indexRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        highLevelClient.index(indexRequest);
+
+        //The write changed the generation of the index, the entry is not served anymore
+        QueryCache strictCache = QueryCache.builder(highLevelClient).generationCheckInterval(TimeValue.ZERO).build();
+        SearchRequest searchRequest = new SearchRequest("bank").source(new SearchSourceBuilder().size(0));
+
+        assert strictCache.search(searchRequest).getHits().getTotalHits() == 1001;
+
+        highLevelClient.delete(new DeleteRequest("bank", "_doc", "1000").setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE));
+
+        assert strictCache.search(searchRequest).getHits().getTotalHits() == 1000;
+        assert strictCache.getMisses() == 2;
     }
 
     @Test
@@ -256,17 +433,9 @@ public class SearchTest {
         assert deleteIndexResponse.isAcknowledged();
     }
 
-    private String readString(InputStream inputStream) {
-        BufferedReader buffer = new BufferedReader(new InputStreamReader(inputStream));
-
-        return buffer.lines().collect(Collectors.joining("\n"));
-    }
-
-    private Map<String, Object> readBody(InputStream inputStream) {
-        String body = readString(inputStream);
-
-        Gson gson = new Gson();
+    private long openSearchContexts() throws IOException {
+        Response response = lowLevelClient.performRequest("GET", "/bank/_stats/search");
 
-        return gson.fromJson(body, HashMap.class);
+        return JsonFieldReader.of("_all.total.search.open_contexts").read(response.getEntity().getContent()).getLong("_all.total.search.open_contexts");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package com.dev.bruno.learning.elasticsearch;
+
+import com.dev.bruno.learning.elasticsearch.client.BinaryClient;
+import com.dev.bruno.learning.elasticsearch.client.ClientFactory;
+import com.dev.bruno.learning.elasticsearch.client.ClientSettings;
+import com.dev.bruno.learning.elasticsearch.client.SharedClient;
+import com.dev.bruno.learning.elasticsearch.embedded.EmbeddedNode;
+import org.apache.http.HttpHost;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Cluster used by the tests.
+ * <p>
+ * When the elasticsearch.hosts system property is set (for example -Delasticsearch.hosts=http://localhost:9200 for
+ * the docker container of the README) the tests run against it, otherwise a node is started inside the JVM once
+ * and shared by every test class.
+ */
+final class TestCluster {
+
+    private static EmbeddedNode embeddedNode;
+    private static SharedClient processLease;
+
+    private TestCluster() {
+    }
+
+    /**
+     * A lease on the shared client. One more lease is held until the JVM stops, so the pool stays open between the
+     * test classes instead of being closed by the last lease of each class.
+     */
+    static synchronized SharedClient client() {
+        if (processLease == null) {
+            processLease = ClientFactory.shared(settings());
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    processLease.close();
+                } catch (IOException e) {
+                    //The JVM is stopping, nothing is left to release the connections to
+                }
+            }));
+        }
+
+        return ClientFactory.shared(settings());
+    }
+
+    static List<HttpHost> hosts() {
+        return settings().getHosts();
+    }
+
+    /**
+     * A client of its own, the Accept header of a binary client would change the responses of the shared one.
+     */
+    static BinaryClient binaryClient(XContentType xContentType) {
+        return ClientFactory.create(settings(), xContentType);
+    }
+
+    /**
+     * The accounts dataset bundled with the tests, a bulk body of 1000 bank accounts.
+     */
+    static InputStream accounts() throws IOException {
+        InputStream in = TestCluster.class.getResourceAsStream("/accounts.json");
+
+        if (in == null) {
+            throw new FileNotFoundException("accounts.json is missing from the test resources");
+        }
+
+        return in;
+    }
+
+    private static ClientSettings settings() {
+        if (System.getProperty(ClientSettings.HOSTS_PROPERTY) != null) {
+            return ClientSettings.defaults();
+        }
+
+        return ClientSettings.builder().hosts(embeddedNode().getHttpHost()).build();
+    }
+
+    private static synchronized EmbeddedNode embeddedNode() {
+        if (embeddedNode == null) {
+            try {
+                embeddedNode = EmbeddedNode.start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    embeddedNode.close();
+                } catch (IOException e) {
+                    //The JVM is stopping, the temporary directory is left behind
+                }
+            }));
+        }
+
+        return embeddedNode;
+    }
+}
@@ -0,0 +1,57 @@
+package com.dev.bruno.learning.elasticsearch.client;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+public class SharedClientTest {
+
+    @Test
+    public void closedWithTheLastLease() throws IOException {
+        //Nothing listens on the port: an open client fails to connect, a closed one refuses to send
+        ClientSettings settings = ClientSettings.builder().hosts(new HttpHost("127.0.0.1", unusedPort())).build();
+        ClientFactory.SharedState state = new ClientFactory.SharedState(ClientFactory.create(settings));
+
+        SharedClient first = ClientFactory.lease(state);
+        SharedClient second = ClientFactory.lease(state);
+
+        assert first.highLevelClient() == second.highLevelClient();
+
+        //A lease closed twice is released once
+        first.close();
+        first.close();
+
+        assert isOpen(second);
+
+        second.close();
+
+        assert !isOpen(second);
+
+        try {
+            ClientFactory.lease(state);
+            assert false;
+        } catch (IllegalStateException e) {
+            //A closed client is not handed out again
+        }
+    }
+
+    private static boolean isOpen(SharedClient client) throws IOException {
+        try {
+            client.lowLevelClient().performRequest("GET", "/");
+        } catch (IllegalStateException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+
+        throw new IOException("Nothing should listen on " + client.lowLevelClient());
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
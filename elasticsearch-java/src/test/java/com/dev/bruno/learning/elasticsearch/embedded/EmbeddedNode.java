@@ -0,0 +1,114 @@
+package com.dev.bruno.learning.elasticsearch.embedded;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.index.reindex.ReindexPlugin;
+import org.elasticsearch.node.InternalSettingsPreparer;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeValidationException;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.transport.Netty4Plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Single node Elasticsearch running inside the JVM, with the same HTTP API as the docker image of the README.
+ * <p>
+ * The node listens on a free port of the loopback interface and keeps its data in a temporary directory that is
+ * deleted on close, so every run starts from an empty cluster without network or docker.
+ */
+public class EmbeddedNode implements Closeable {
+
+    public static final String CLUSTER_NAME = "embedded-cluster";
+
+    private final Path home;
+    private final Node node;
+    private final HttpHost httpHost;
+
+    private EmbeddedNode(Path home, Node node, HttpHost httpHost) {
+        this.home = home;
+        this.node = node;
+        this.httpHost = httpHost;
+    }
+
+    public static EmbeddedNode start() throws IOException {
+        Path home = Files.createTempDirectory("elasticsearch-embedded");
+
+        Settings settings = Settings.builder()
+            .put("cluster.name", CLUSTER_NAME)
+            .put("node.name", "embedded")
+            .put("path.home", home.toString())
+            .put("discovery.type", "single-node")
+            .put("network.host", "127.0.0.1")
+            .put("http.port", 0)
+            .put("transport.tcp.port", 0)
+            .put("transport.type", Netty4Plugin.NETTY_TRANSPORT_NAME)
+            .put("http.type", Netty4Plugin.NETTY_HTTP_TRANSPORT_NAME)
+            .build();
+
+        //The modules of a distribution are not on the classpath, only the HTTP transport and _reindex are loaded
+        Node node = new PluginNode(settings, Arrays.asList(Netty4Plugin.class, ReindexPlugin.class));
+
+        try {
+            node.start();
+        } catch (NodeValidationException e) {
+            node.close();
+            throw new IOException("Embedded node failed its validation", e);
+        }
+
+        NodeInfo info = node.client().admin().cluster().prepareNodesInfo().setHttp(true).get().getNodes().get(0);
+        TransportAddress address = info.getHttp().getAddress().publishAddress();
+
+        return new EmbeddedNode(home, node, new HttpHost(address.getAddress(), address.getPort(), "http"));
+    }
+
+    public HttpHost getHttpHost() {
+        return httpHost;
+    }
+
+    @Override
+    public void close() throws IOException {
+        node.close();
+        delete(home);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Node is only able to load classpath plugins through its protected constructor.
+     */
+    private static class PluginNode extends Node {
+
+        PluginNode(Settings settings, Collection<Class<? extends Plugin>> plugins) {
+            super(InternalSettingsPreparer.prepareEnvironment(settings, null), plugins);
+        }
+    }
+}